@@ -0,0 +1,137 @@
+package com.ybb.bitmapcompress;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static com.ybb.bitmapcompress.Preconditions.checkNotNull;
+
+/**
+ * 批量压缩请求
+ * <p>
+ * 由 {@link Luban#load(List)} 返回的 {@link Builder} 创建，创建以后不可修改。
+ * 同时压缩的图片数量不是固定的，而是根据每张图片预计占用的解码内存和 {@link Builder#setMemoryBudget(long)} 决定。
+ */
+public final class BatchRequest {
+
+    private final List<File> mFiles;
+    private final int mGear;
+    private final OnBatchCompressListener mListener;
+    private final Executor mCallbackExecutor;
+    private final long mMemoryBudget;
+    private final float mMinSsim;
+
+    private BatchRequest(Builder builder) {
+        mFiles = Collections.unmodifiableList(new ArrayList<>(builder.mFiles));
+        mGear = builder.mGear;
+        mListener = builder.mListener;
+        mCallbackExecutor = builder.mCallbackExecutor;
+        mMemoryBudget = builder.mMemoryBudget > 0 ? builder.mMemoryBudget : MemoryBudget.defaultCapacity();
+        mMinSsim = builder.mMinSsim;
+    }
+
+    public List<File> getFiles() {
+        return mFiles;
+    }
+
+    public int getGear() {
+        return mGear;
+    }
+
+    public OnBatchCompressListener getListener() {
+        return mListener;
+    }
+
+    /**
+     * 回调线程，为null的时候在主线程上回调
+     */
+    public Executor getCallbackExecutor() {
+        return mCallbackExecutor;
+    }
+
+    /**
+     * 同时压缩的图片最多可以占用的解码内存（字节）
+     */
+    public long getMemoryBudget() {
+        return mMemoryBudget;
+    }
+
+    /**
+     * 按画质压缩时的SSIM阈值，为0的时候按文件大小压缩
+     */
+    public float getMinSsim() {
+        return mMinSsim;
+    }
+
+    public static final class Builder {
+        private final Luban mLuban;
+        private final List<File> mFiles;
+        private int mGear = Luban.THIRD_GEAR;
+        private OnBatchCompressListener mListener;
+        private Executor mCallbackExecutor;
+        private long mMemoryBudget;
+        private float mMinSsim;
+
+        Builder(Luban luban, List<File> files) {
+            mLuban = luban;
+            mFiles = files;
+        }
+
+        public Builder putGear(int gear) {
+            mGear = gear;
+            return this;
+        }
+
+        public Builder setCompressListener(OnBatchCompressListener listener) {
+            mListener = listener;
+            return this;
+        }
+
+        /**
+         * 设置回调线程，例如 {@link CompressExecutors#mainThread()} 或 {@link CompressExecutors#immediate()}
+         */
+        public Builder callbackOn(Executor executor) {
+            mCallbackExecutor = executor;
+            return this;
+        }
+
+        /**
+         * 设置同时压缩的图片最多可以占用的解码内存（字节），默认是最大堆内存的四分之一
+         */
+        public Builder setMemoryBudget(long bytes) {
+            mMemoryBudget = bytes;
+            return this;
+        }
+
+        /**
+         * 按画质压缩：不再按压缩级别对应的文件大小压缩，而是使用和原图的相似度（SSIM）不低于minSsim的最低质量，
+         * 例如 {@link PerceptualSearch#DEFAULT_MIN_SSIM}。压缩级别仍然决定图片的尺寸，为0的时候不使用。
+         */
+        public Builder setMinSsim(float minSsim) {
+            if (minSsim < 0 || minSsim >= 1) {
+                throw new IllegalArgumentException("minSsim must be in [0, 1): " + minSsim);
+            }
+            mMinSsim = minSsim;
+            return this;
+        }
+
+        public BatchRequest build() {
+            checkNotNull(mFiles, "the image files cannot be null, please call .load() before this method!");
+            for (File file : mFiles) {
+                checkNotNull(file, "the image file cannot be null");
+            }
+            return new BatchRequest(this);
+        }
+
+        /**
+         * 在压缩线程池中批量压缩，不会阻塞当前线程
+         *
+         * @return 批量压缩的句柄，可以用来取消剩下的压缩
+         */
+        public BatchTask launch() {
+            return mLuban.launch(build());
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package com.ybb.bitmapcompress;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * 一次批量压缩的句柄
+ * <p>
+ * 图片按顺序开始压缩：每张图片开始之前先根据它的压缩计划估算解码需要的内存，
+ * 预算还够的时候就提交到压缩流水线，不够的时候等前面的图片压缩完归还了内存再继续。
+ * 这样小图可以同时压缩很多张，大图则会自动减少同时压缩的数量。
+ */
+public class BatchTask {
+
+    private final Luban mLuban;
+    private final BatchRequest mRequest;
+    private final CompressPipeline mPipeline;
+    private final Executor mCallbackExecutor;
+    private final MemoryBudget mBudget;
+    private final File[] mResults;
+    private final CompressTask<?>[] mTasks;
+    private final long[] mGranted;
+
+    private int mNext;
+    private long mPendingEstimate = -1;
+    private int mRunning;
+    private int mFinished;
+    /**
+     * 同时只有一个线程在提交图片，提交期间有图片完成的时候由 {@link #mRescheduled} 通知它再试一次
+     */
+    private boolean mScheduling;
+    private boolean mRescheduled;
+    private volatile boolean mCancelled;
+
+    BatchTask(Luban luban, BatchRequest request, CompressPipeline pipeline, Executor callbackExecutor) {
+        mLuban = luban;
+        mRequest = request;
+        mPipeline = pipeline;
+        mCallbackExecutor = callbackExecutor;
+        mBudget = new MemoryBudget(request.getMemoryBudget());
+        mResults = new File[request.getFiles().size()];
+        mTasks = new CompressTask<?>[mResults.length];
+        mGranted = new long[mResults.length];
+    }
+
+    void start() {
+        if (mResults.length == 0) {
+            dispatchComplete();
+            return;
+        }
+        //估算内存需要读取图片的宽高，不要在调用者的线程上做
+        scheduleOnIo();
+    }
+
+    /**
+     * 在读写文件的线程池里继续提交图片：开始的时候不占用调用者的线程，图片完成以后不占用解码、编码的线程
+     */
+    private void scheduleOnIo() {
+        try {
+            mPipeline.ioExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    schedule();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            schedule();
+        }
+    }
+
+    /**
+     * 取消还没有完成的压缩，取消以后不会再有任何回调。取消的图片也算完成，之后 {@link #isDone()} 返回true
+     */
+    public void cancel() {
+        mCancelled = true;
+        synchronized (this) {
+            for (int i = 0; i < mTasks.length; i++) {
+                if (mTasks[i] != null) {
+                    //取消以后这张图片不会再回调onItemFinished
+                    mTasks[i].cancel(false);
+                    mTasks[i] = null;
+                    mBudget.release(mGranted[i]);
+                    mRunning--;
+                    mFinished++;
+                }
+            }
+            mFinished += mResults.length - mNext;
+            mNext = mResults.length;
+            mPendingEstimate = -1;
+        }
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    public synchronized boolean isDone() {
+        return mFinished == mResults.length;
+    }
+
+    /**
+     * 按顺序提交图片，直到内存预算或者流水线满了。估算内存和提交都会读取文件，不在锁里面做
+     */
+    private void schedule() {
+        synchronized (this) {
+            if (mScheduling) {
+                mRescheduled = true;
+                return;
+            }
+            mScheduling = true;
+        }
+        while (true) {
+            int index;
+            File file;
+            long estimate;
+            synchronized (this) {
+                if (mNext >= mResults.length || mCancelled) {
+                    mScheduling = false;
+                    return;
+                }
+                index = mNext;
+                file = mRequest.getFiles().get(index);
+                estimate = mPendingEstimate;
+                mRescheduled = false;
+            }
+            if (estimate < 0) {
+                estimate = mLuban.estimateMemory(file, mRequest.getGear());
+            }
+            CompressTask<File> task;
+            long granted;
+            synchronized (this) {
+                if (mCancelled) {
+                    mScheduling = false;
+                    return;
+                }
+                granted = mBudget.tryAcquire(estimate);
+                if (granted < 0) {
+                    //内存预算不够了，等正在压缩的图片完成后再继续
+                    mPendingEstimate = estimate;
+                    if (stopScheduling()) {
+                        return;
+                    }
+                    continue;
+                }
+                mPendingEstimate = -1;
+                mNext++;
+                mRunning++;
+                task = new CompressTask<>(new Item(index, file), CompressExecutors.immediate());
+                mTasks[index] = task;
+                mGranted[index] = granted;
+            }
+            CompressRequest request = mLuban.load(file).putGear(mRequest.getGear())
+                    .setMinSsim(mRequest.getMinSsim()).build();
+            try {
+                mLuban.submit(request, task);
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    if (mTasks[index] != task) {
+                        //已经被取消了，cancel()算过了
+                        continue;
+                    }
+                    mTasks[index] = null;
+                    mBudget.release(granted);
+                    mRunning--;
+                    if (mRunning > 0) {
+                        //流水线满了，等正在压缩的图片完成后再提交
+                        mNext--;
+                        mPendingEstimate = estimate;
+                        if (stopScheduling()) {
+                            return;
+                        }
+                        continue;
+                    }
+                    mFinished++;
+                    dispatchItem(index, file, null, "压缩任务太多，请稍后再试", mFinished == mResults.length);
+                }
+            }
+        }
+    }
+
+    /**
+     * 暂停提交，等待图片完成。等待期间已经有图片完成的时候返回false，马上再试一次
+     */
+    private boolean stopScheduling() {
+        if (mRescheduled) {
+            mRescheduled = false;
+            return false;
+        }
+        mScheduling = false;
+        return true;
+    }
+
+    private void onItemFinished(int index, File source, File result, String error) {
+        boolean pending;
+        synchronized (this) {
+            if (mTasks[index] == null) {
+                //已经取消了
+                return;
+            }
+            mResults[index] = result;
+            mTasks[index] = null;
+            mBudget.release(mGranted[index]);
+            mRunning--;
+            mFinished++;
+            //在锁里面分发回调，保证onComplete一定在所有单张图片的回调之后
+            dispatchItem(index, source, result, error, mFinished == mResults.length);
+            pending = mNext < mResults.length && !mCancelled;
+        }
+        if (pending) {
+            //单张图片在完成压缩的流水线线程上回调
+            scheduleOnIo();
+        }
+    }
+
+    private void dispatchItem(final int index, final File source, final File result, final String error,
+                              boolean last) {
+        final OnBatchCompressListener listener = mRequest.getListener();
+        if (listener != null && !mCancelled) {
+            mCallbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (mCancelled) {
+                        return;
+                    }
+                    if (error == null) {
+                        listener.onSuccess(index, source, result);
+                    } else {
+                        listener.onError(index, source, error);
+                    }
+                }
+            });
+        }
+        if (last) {
+            dispatchComplete();
+        }
+    }
+
+    private void dispatchComplete() {
+        final OnBatchCompressListener listener = mRequest.getListener();
+        if (listener == null || mCancelled) {
+            return;
+        }
+        final List<File> files;
+        synchronized (this) {
+            files = Collections.unmodifiableList(Arrays.asList(mResults.clone()));
+        }
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!mCancelled) {
+                    listener.onComplete(files);
+                }
+            }
+        });
+    }
+
+    /**
+     * 单张图片的压缩结果，在完成压缩的线程上直接回调
+     */
+    private class Item implements CompressTask.Callback<File> {
+        private final int mIndex;
+        private final File mSource;
+
+        Item(int index, File source) {
+            mIndex = index;
+            mSource = source;
+        }
+
+        @Override
+        public void onSuccess(File file) {
+            onItemFinished(mIndex, mSource, file, null);
+        }
+
+        @Override
+        public void onError(String e) {
+            onItemFinished(mIndex, mSource, null, e);
+        }
+    }
+}
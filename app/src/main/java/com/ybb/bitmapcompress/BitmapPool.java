@@ -0,0 +1,231 @@
+package com.ybb.bitmapcompress;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * 可复用的图片池
+ * <p>
+ * 每压缩一张图片都要分配几张几兆到几十兆的图片，批量压缩的时候频繁地分配和释放会引起GC停顿，
+ * 堆里的碎片多了以后还容易OOM。用完的图片放回池子里，下一次解码通过 {@link BitmapFactory.Options#inBitmap}
+ * 直接解码到池子里的图片上，缩放和旋转也直接画到池子里的图片上，不需要重新分配。
+ * <p>
+ * 按宽高和颜色格式查找：Android 4.4以上只要占用的内存足够大、颜色格式相同就可以改变尺寸后复用，
+ * 4.4以下只能复用宽高完全相同的图片，而且只能用于不按采样率解码的情况。
+ * 池子里的图片总大小超过上限的时候释放最久没有使用的图片。
+ */
+public final class BitmapPool {
+
+    /**
+     * 4.4以上复用的图片最多可以比需要的大几倍
+     */
+    private static final int MAX_OVERSIZE = 4;
+
+    private static volatile BitmapPool sDefault;
+
+    private final long mMaxSize;
+    /**
+     * 按放回的顺序排列，最近放回的在最后面
+     */
+    private final LinkedList<Bitmap> mBitmaps = new LinkedList<>();
+    private long mSize;
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
+
+    /**
+     * @param maxSize 池子里的图片最多占用多少内存（字节）
+     */
+    public BitmapPool(long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+        }
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * 压缩使用的图片池，最多占用最大内存的1/8
+     */
+    public static BitmapPool getDefault() {
+        if (sDefault == null) {
+            synchronized (BitmapPool.class) {
+                if (sDefault == null) {
+                    sDefault = new BitmapPool(Runtime.getRuntime().maxMemory() / 8);
+                }
+            }
+        }
+        return sDefault;
+    }
+
+    /**
+     * 取一张指定尺寸和颜色格式的可修改的图片，内容已经清空
+     *
+     * @return 池子里没有合适的图片的时候返回null
+     */
+    public Bitmap get(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = take(width, height, config);
+        if (bitmap != null) {
+            bitmap.eraseColor(0);
+        }
+        return bitmap;
+    }
+
+    /**
+     * 取一张指定尺寸和颜色格式的可修改的图片，池子里没有合适的图片的时候新建一张
+     */
+    public Bitmap getOrCreate(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = get(width, height, config);
+        return bitmap != null ? bitmap : Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * 为解码设置 {@link BitmapFactory.Options#inBitmap}，解码失败的时候需要把 inBitmap 放回池子并且不使用它重新解码
+     *
+     * @param width  解码出来的宽，4.4以上可以是估算的上限
+     * @param height 解码出来的高，4.4以上可以是估算的上限
+     */
+    void prepareDecode(BitmapFactory.Options options, int width, int height) {
+        options.inMutable = true;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT && options.inSampleSize > 1) {
+            return;
+        }
+        Bitmap.Config config = options.inPreferredConfig != null ? options.inPreferredConfig : Bitmap.Config.ARGB_8888;
+        options.inBitmap = take(width, height, config);
+    }
+
+    private synchronized Bitmap take(int width, int height, Bitmap.Config config) {
+        long needed = (long) width * height * bytesPerPixel(config);
+        boolean reconfigure = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+        Bitmap best = null;
+        for (Bitmap bitmap : mBitmaps) {
+            if (bitmap.getConfig() != config) {
+                continue;
+            }
+            if (bitmap.getWidth() == width && bitmap.getHeight() == height) {
+                best = bitmap;
+                break;
+            }
+            //占用内存最接近的一张，小图不占用大图的内存
+            long size = sizeOf(bitmap);
+            if (reconfigure && size >= needed && size <= needed * MAX_OVERSIZE
+                    && (best == null || size < sizeOf(best))) {
+                best = bitmap;
+            }
+        }
+        if (best == null) {
+            mMissCount++;
+            return null;
+        }
+        mBitmaps.remove(best);
+        mSize -= sizeOf(best);
+        mHitCount++;
+        //只有4.4以后才会选中尺寸不同的图片，直接判断版本让Lint看得到
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+                && (best.getWidth() != width || best.getHeight() != height)) {
+            best.reconfigure(width, height, config);
+        }
+        return best;
+    }
+
+    /**
+     * 把用完的图片放回池子，之后不能再使用。不可修改的图片或者太大的图片直接释放
+     */
+    public void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        if (!bitmap.isMutable() || bitmap.getConfig() == null || sizeOf(bitmap) > mMaxSize / 2) {
+            bitmap.recycle();
+            return;
+        }
+        synchronized (this) {
+            if (mBitmaps.contains(bitmap)) {
+                return;
+            }
+            mBitmaps.addLast(bitmap);
+            mSize += sizeOf(bitmap);
+            trimToSize(mMaxSize);
+        }
+    }
+
+    /**
+     * 释放池子里所有的图片，可以在 onTrimMemory 里调用
+     */
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    private void trimToSize(long maxSize) {
+        Iterator<Bitmap> iterator = mBitmaps.iterator();
+        while (mSize > maxSize && iterator.hasNext()) {
+            Bitmap eldest = iterator.next();
+            iterator.remove();
+            mSize -= sizeOf(eldest);
+            mEvictionCount++;
+            eldest.recycle();
+        }
+    }
+
+    private static long sizeOf(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getByteCount();
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config) {
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+
+    /**
+     * 池子里的图片占用的内存（字节）
+     */
+    public synchronized long size() {
+        return mSize;
+    }
+
+    public long maxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * 从池子里取到图片的次数
+     */
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * 池子里没有合适的图片的次数
+     */
+    public synchronized int missCount() {
+        return mMissCount;
+    }
+
+    /**
+     * 因为超过上限而释放的图片数
+     */
+    public synchronized int evictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        int accesses = mHitCount + mMissCount;
+        int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+        return String.format("BitmapPool[size=%d,maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]",
+                mSize, mMaxSize, mHitCount, mMissCount, hitPercent);
+    }
+}
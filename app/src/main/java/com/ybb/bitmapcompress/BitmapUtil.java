@@ -8,7 +8,6 @@ import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Matrix;
-import android.media.ExifInterface;
 import android.net.Uri;
 import android.os.Environment;
 import android.provider.DocumentsContract;
@@ -21,6 +20,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by 闫斌斌 on 2016/7/21 14:15.
@@ -29,12 +29,25 @@ import java.io.OutputStream;
  */
 public class BitmapUtil {
 
+    private static final AtomicInteger IMAGE_SEQUENCE = new AtomicInteger();
     /**
-     * 根据时间创建图片的文件名
+     * 解码的时候内存不足最多重试几次，每次采样率加倍
+     */
+    private static final int MAX_OOM_RETRIES = 3;
+
+    /**
+     * 根据时间创建图片的文件名，同一毫秒内同时压缩的图片通过序号区分
      */
     public static String makeImageName() {
+        return makeImageName(".jpg");
+    }
+
+    /**
+     * @param extension 扩展名，例如 .webp
+     */
+    public static String makeImageName(String extension) {
         long currentTimeMillis = System.currentTimeMillis();
-        return String.valueOf(currentTimeMillis) + ".jpg";
+        return String.valueOf(currentTimeMillis) + "_" + IMAGE_SEQUENCE.incrementAndGet() + extension;
     }
 
     /**
@@ -42,7 +55,7 @@ public class BitmapUtil {
      *
      * @param context     上下文
      * @param originalUri 要压缩的图片的Uri
-     * @return 返回一个bitmap
+     * @return 返回一个bitmap，特别大的图片按 {@link MemoryBudget#perJob()} 缩小
      * @throws Exception
      */
     public static Bitmap getBitmapFromUri(Context context, Uri originalUri) {
@@ -50,11 +63,27 @@ public class BitmapUtil {
         InputStream is = null;
         Bitmap bitmap = null;
         try {
+            //先读取宽高，特别大的图片按采样率解码，避免内存不足
             is = resolver.openInputStream(originalUri);
-            BitmapFactory.Options opts = new BitmapFactory.Options();
-            opts.inJustDecodeBounds = false;
-            bitmap = BitmapFactory.decodeStream(is, null, opts);
+            BitmapFactory.Options bounds = new BitmapFactory.Options();
+            bounds.inJustDecodeBounds = true;
+            BitmapFactory.decodeStream(is, null, bounds);
             is.close();
+
+            BitmapFactory.Options opts = new BitmapFactory.Options();
+            opts.inSampleSize = MemoryBudget.sampleSizeFor(bounds.outWidth, bounds.outHeight, 4, MemoryBudget.perJob());
+            for (int retry = 0; retry <= MAX_OOM_RETRIES; retry++) {
+                is = resolver.openInputStream(originalUri);
+                try {
+                    bitmap = BitmapFactory.decodeStream(is, null, opts);
+                    break;
+                } catch (OutOfMemoryError e) {
+                    //内存不足的时候按更大的采样率重试
+                    opts.inSampleSize *= 2;
+                } finally {
+                    is.close();
+                }
+            }
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -66,12 +95,33 @@ public class BitmapUtil {
      * 如果这个图片文件的图片的角度参数是错误的，那么就它的旋转角度调整过来。让它看起来不是旋转了90度的。
      *
      * @param photoFilePath 要旋转的目标图片的路径
-     * @return 返回一个旋转角度正确的bitmap
+     * @return 返回一个旋转角度正确的bitmap，特别大的图片按 {@link MemoryBudget#perJob()} 缩小
      */
     public static Bitmap getCorrectDegreeBitmap(String photoFilePath) {
-        int degree = getImageSpinAngle(photoFilePath);
-        Bitmap bitmap = BitmapFactory.decodeFile(photoFilePath);
-        return rotatingImage(degree, bitmap);
+        ImageProbe probe = ImageProbe.probe(new File(photoFilePath));
+        int degree = probe.getOrientation();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        //旋转以后原图可以放回图片池
+        options.inMutable = true;
+        //旋转的时候原图和旋转后的图片同时存在
+        long budget = degree % 360 == 0 ? MemoryBudget.perJob() : MemoryBudget.perJob() / 2;
+        options.inSampleSize = MemoryBudget.sampleSizeFor(probe.getWidth(), probe.getHeight(), 4, budget);
+        for (int retry = 0; retry <= MAX_OOM_RETRIES; retry++) {
+            Bitmap decoded = null;
+            try {
+                decoded = BitmapFactory.decodeFile(photoFilePath, options);
+                return rotatingImage(degree, decoded);
+            } catch (OutOfMemoryError e) {
+                //旋转的时候内存不足，解码出来的原图不能留到下一次重试
+                if (decoded != null) {
+                    decoded.recycle();
+                }
+                //先释放图片池里的图片，再按更大的采样率重试
+                BitmapPool.getDefault().clear();
+                options.inSampleSize *= 2;
+            }
+        }
+        return null;
     }
 
     /**
@@ -83,18 +133,27 @@ public class BitmapUtil {
      * @return 返回保存的文件的绝对路径
      */
     public static String saveAsFile(Context context, Bitmap bitmap, String storedPath) {
+        return saveAsFile(context, bitmap, storedPath, OutputFormat.JPEG);
+    }
+
+    /**
+     * 将一个bitmap按指定的格式以最高质量保存为一个File文件，见 {@link #saveAsFile(Context, Bitmap, String)}
+     *
+     * @param format 保存的格式，文件的扩展名和格式一致
+     */
+    public static String saveAsFile(Context context, Bitmap bitmap, String storedPath, OutputFormat format) {
         String fileName = null;
         if (storedPath == null) {
             String dir[] = context.getPackageName().split(".");
             File file = new File("/sdcard/" + dir[dir.length - 1] + "Image/");
             file.mkdirs();// 创建文件夹
-            fileName = file.getAbsolutePath() + File.separator + BitmapUtil.makeImageName();
+            fileName = file.getAbsolutePath() + File.separator + BitmapUtil.makeImageName(format.getExtension());
         } else {
-            fileName = storedPath + BitmapUtil.makeImageName();
+            fileName = storedPath + BitmapUtil.makeImageName(format.getExtension());
         }
         File photoFile = new File(fileName);
         try {
-            bitmap.compress(Bitmap.CompressFormat.JPEG, 100, new FileOutputStream(photoFile));
+            bitmap.compress(format.getCompressFormat(), format.maxQuality(), new FileOutputStream(photoFile));
 
         } catch (FileNotFoundException e) {
             e.printStackTrace();
@@ -133,25 +192,7 @@ public class BitmapUtil {
      * @param path path of target image
      */
     public static int getImageSpinAngle(String path) {
-        int degree = 0;
-        try {
-            ExifInterface exifInterface = new ExifInterface(path);
-            int orientation = exifInterface.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
-            switch (orientation) {
-                case ExifInterface.ORIENTATION_ROTATE_90:
-                    degree = 90;
-                    break;
-                case ExifInterface.ORIENTATION_ROTATE_180:
-                    degree = 180;
-                    break;
-                case ExifInterface.ORIENTATION_ROTATE_270:
-                    degree = 270;
-                    break;
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return degree;
+        return ImageProbe.probe(new File(path)).getOrientation();
     }
 
     /**
@@ -162,12 +203,20 @@ public class BitmapUtil {
      * @param bitmap target image               目标图片
      */
     private static Bitmap rotatingImage(int angle, Bitmap bitmap) {
+        if (bitmap == null || angle % 360 == 0) {
+            //不需要旋转的时候不再复制一张图片
+            return bitmap;
+        }
         //rotate image
         Matrix matrix = new Matrix();
         matrix.postRotate(angle);
 
         //create a new image
-        return Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+        Bitmap rotated = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+        if (rotated != bitmap) {
+            BitmapPool.getDefault().put(bitmap);
+        }
+        return rotated;
     }
 
     /**
@@ -176,16 +225,8 @@ public class BitmapUtil {
      * @param imagePath the path of image
      */
     public static int[] getImageSize(String imagePath) {
-        int[] res = new int[2];
-
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-        options.inSampleSize = 1;
-        BitmapFactory.decodeFile(imagePath, options);
-
-        res[0] = options.outWidth;
-        res[1] = options.outHeight;
-        return res;
+        ImageProbe probe = ImageProbe.probe(new File(imagePath));
+        return new int[]{probe.getWidth(), probe.getHeight()};
     }
 
 
@@ -200,17 +241,19 @@ public class BitmapUtil {
         boolean b = false;
         Bitmap bitmap = BitmapFactory.decodeFile(photoFilePath);
         OutputStream os = null;
+        //WebP的压缩结果仍然按WebP保存，其他格式按JPEG保存
+        OutputFormat format = OutputFormat.forMimeType(ImageProbe.probe(new File(photoFilePath)).getMimeType());
         //插入安卓系统的资源库
         ContentValues values = new ContentValues();
-        values.put(MediaStore.Images.Media.DISPLAY_NAME, makeImageName());
-        values.put(MediaStore.Images.Media.MIME_TYPE, "image/jpeg");
+        values.put(MediaStore.Images.Media.DISPLAY_NAME, makeImageName(format.getExtension()));
+        values.put(MediaStore.Images.Media.MIME_TYPE, format.getMimeType());
         values.put(MediaStore.Images.Media.DATA, photoFilePath);
 
         Uri uri = context.getContentResolver().insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, values);
 
         try {
             os = context.getContentResolver().openOutputStream(uri);
-            b = bitmap.compress(Bitmap.CompressFormat.JPEG, 100, os);
+            b = bitmap.compress(format.getCompressFormat(), format.maxQuality(), os);
         } catch (FileNotFoundException e) {
             e.printStackTrace();
             return false;
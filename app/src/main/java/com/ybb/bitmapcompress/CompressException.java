@@ -0,0 +1,17 @@
+package com.ybb.bitmapcompress;
+
+/**
+ * 压缩失败时抛出的异常，异常信息就是回调给 {@link OnCompressListener#onError(String)} 的错误信息
+ */
+public class CompressException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public CompressException(String message) {
+        super(message);
+    }
+
+    public CompressException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,129 @@
+package com.ybb.bitmapcompress;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 图片压缩使用的线程池和回调线程
+ * <p>
+ * 压缩任务在有界的线程池中执行，任务队列也是有界的，队列满了以后新提交的任务会被拒绝，
+ * 而不是无限制地堆积在内存中。
+ */
+public final class CompressExecutors {
+
+    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+    /**
+     * 默认的工作线程数：至少两个，最多四个，并且给UI线程留出一个核心（和AsyncTask的取值一样）
+     */
+    public static final int DEFAULT_THREAD_COUNT = Math.max(2, Math.min(CPU_COUNT - 1, 4));
+    /**
+     * 默认的任务队列长度
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 128;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static volatile Executor sMainThreadExecutor;
+
+    private static final Executor IMMEDIATE = new Executor() {
+        @Override
+        public void execute(@NonNull Runnable command) {
+            command.run();
+        }
+    };
+
+    private CompressExecutors() {
+    }
+
+    /**
+     * 创建一个有界的压缩线程池
+     *
+     * @param threadCount   工作线程数
+     * @param queueCapacity 等待队列的长度，队列满了以后提交的任务会抛出 {@link java.util.concurrent.RejectedExecutionException}
+     */
+    public static ExecutorService newBoundedExecutor(int threadCount, int queueCapacity) {
+        return newBoundedExecutor(threadCount, queueCapacity, "Luban", new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * 创建一个有界的线程池
+     *
+     * @param threadCount   工作线程数
+     * @param queueCapacity 等待队列的长度
+     * @param name          线程名的前缀
+     * @param handler       队列满了以后的处理方式
+     */
+    static ThreadPoolExecutor newBoundedExecutor(int threadCount, int queueCapacity, String name,
+                                                 RejectedExecutionHandler handler) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("threadCount must be positive: " + threadCount);
+        }
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("queueCapacity must be positive: " + queueCapacity);
+        }
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threadCount, threadCount,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(queueCapacity),
+                new CompressThreadFactory(name), handler);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * 在主线程上执行回调
+     */
+    public static Executor mainThread() {
+        if (sMainThreadExecutor == null) {
+            synchronized (CompressExecutors.class) {
+                if (sMainThreadExecutor == null) {
+                    final Handler handler = new Handler(Looper.getMainLooper());
+                    sMainThreadExecutor = new Executor() {
+                        @Override
+                        public void execute(@NonNull Runnable command) {
+                            handler.post(command);
+                        }
+                    };
+                }
+            }
+        }
+        return sMainThreadExecutor;
+    }
+
+    /**
+     * 直接在完成压缩的工作线程上执行回调
+     */
+    public static Executor immediate() {
+        return IMMEDIATE;
+    }
+
+    private static class CompressThreadFactory implements ThreadFactory {
+        private final String mName;
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        CompressThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(@NonNull final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    //压缩是后台工作，不要和UI线程抢CPU
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, mName + " #" + mCount.getAndIncrement());
+        }
+    }
+}
@@ -0,0 +1,997 @@
+package com.ybb.bitmapcompress;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.net.Uri;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * 一个正在执行的压缩请求
+ * <p>
+ * 压缩分成四个阶段，每个阶段只做一类事情，这样 {@link CompressPipeline} 可以把读写文件和解码、编码放在不同的线程池里：
+ * <ol>
+ * <li>{@link #PROBE}：读取图片的宽高和旋转角度，计算压缩计划（I/O），文件、Uri或者输入流的内容由 {@link SourceData} 读取一次，解码时继续使用。
+ * {@link ResultCache} 里有同样参数的压缩结果的时候直接复制，不再执行后面的阶段</li>
+ * <li>{@link #DECODE}：按采样率解码，再一次完成缩放和旋转（CPU），特别大的图片分块解码，
+ * 第四种压缩方法在这里接着计算下一步的压缩计划。内存不足的时候按更大的采样率重新解码</li>
+ * <li>{@link #ENCODE}：按 {@link OutputFormat} 编码成JPEG或者WebP（CPU）</li>
+ * <li>{@link #WRITE}：写入调用者的输出流或者 {@link OutputStore} 分配的文件，同时保存到 {@link ResultCache}（I/O）</li>
+ * </ol>
+ * 中间产生的图片都只属于这一个请求。
+ * <p>
+ * 多尺寸压缩（{@link PyramidRequest}）的阶段相同：解码时缩放到最大的尺寸，编码时从大到小逐级缩小并同时编码所有的尺寸，
+ * 最后写入所有的文件。
+ * <p>
+ * 同一张图片用同样的参数同时压缩多次的时候（预览、发送、重试），后来的请求通过 {@link #attach(CompressTask)}
+ * 加入正在执行的压缩，只压缩一次，压缩完成以后每个请求都收到同一个文件。
+ * 每个请求可以单独取消，所有的请求都取消以后才停止压缩。
+ */
+final class CompressJob {
+
+    static final int PROBE = 0;
+    static final int DECODE = 1;
+    static final int ENCODE = 2;
+    static final int WRITE = 3;
+    static final int DONE = -1;
+
+    /**
+     * 解码的时候内存不足最多重试几次，每次采样率加倍
+     */
+    private static final int MAX_OOM_RETRIES = 3;
+
+    private final Luban mLuban;
+    /**
+     * 等待这个压缩结果的所有请求，同步压缩的时候只有执行期间加入的请求
+     */
+    private final List<CompressTask<?>> mTasks = new ArrayList<>(1);
+    /**
+     * 已经完成、失败或者被取消，不能再加入新的请求
+     */
+    private boolean mFinished;
+    private final BitmapPool mBitmapPool = BitmapPool.getDefault();
+    private final boolean mLowLatency;
+    private final float mMinSsim;
+
+    private final String mKey;
+    /**
+     * 要压缩的图片：文件、Uri或者输入流，只有一个不为null
+     */
+    private final File mSourceFile;
+    private final Uri mSourceUri;
+    private final InputStream mSourceStream;
+    /**
+     * 压缩后的数据写入的输出流，为null的时候只写入文件
+     */
+    private final OutputStream mSink;
+    /**
+     * 写入输出流的同时也写入文件
+     */
+    private final boolean mTeeToFile;
+    /**
+     * 输出格式，多尺寸压缩的每个尺寸见 {@link OutputSpec#getFormat()}
+     */
+    private final OutputFormat mFormat;
+    /**
+     * 是否按图片的内容调整输出格式，见 {@link Luban#setContentAware(boolean)}
+     */
+    private final boolean mContentAware;
+    /**
+     * 要压缩的图片的内容，读取图片信息和解码共用，解码以后释放
+     */
+    private SourceData mSourceData;
+    private final int mGear;
+    private CompressPlan mPlan;
+    private Bitmap mBitmap;
+    private QualitySearch.Result mEncoded;
+    /**
+     * {@link #mEncoded} 实际的格式
+     */
+    private OutputFormat mEncodedFormat;
+    private File mResult;
+    /**
+     * 压缩结果在 {@link ResultCache} 里的key，没有缓存的时候为null
+     */
+    private String mCacheKey;
+
+    /**
+     * 多尺寸压缩要输出的尺寸，普通的压缩为null
+     */
+    private final List<OutputSpec> mOutputs;
+    /**
+     * 每种尺寸的编码结果，和 {@link #mOutputs} 的顺序相同
+     */
+    private QualitySearch.Result[] mEncodedOutputs;
+    /**
+     * 每种尺寸编码用的格式，编码以后是实际的格式
+     */
+    private OutputFormat[] mEncodedOutputFormats;
+    private List<File> mResults;
+
+    /**
+     * @param task 异步压缩的句柄，同步压缩的时候为null
+     */
+    CompressJob(Luban luban, CompressRequest request, CompressTask<File> task) {
+        mLuban = luban;
+        if (task != null) {
+            mTasks.add(task);
+        }
+        mSourceFile = request.getFile();
+        mSourceUri = request.getUri();
+        mSourceStream = request.getInputStream();
+        mSink = request.getOutput();
+        mTeeToFile = request.isTeeToFile();
+        mFormat = request.getOutputFormat() != null
+                ? request.getOutputFormat() : luban.getOutputFormat(request.getGear());
+        mContentAware = request.getOutputFormat() == null && luban.isContentAware();
+        mGear = request.getGear();
+        mLowLatency = request.isLowLatency();
+        mMinSsim = request.getMinSsim();
+        mOutputs = null;
+        //从输入流压缩或者压缩到输出流的时候每个请求都单独压缩
+        mKey = mSourceStream != null || mSink != null ? null : sourceKey() + "|" + mGear + "|" + formatName()
+                + "|" + mLowLatency + "|" + mMinSsim;
+    }
+
+    /**
+     * 多尺寸压缩
+     *
+     * @param task 异步压缩的句柄，同步压缩的时候为null
+     */
+    CompressJob(Luban luban, PyramidRequest request, CompressTask<List<File>> task) {
+        mLuban = luban;
+        if (task != null) {
+            mTasks.add(task);
+        }
+        mSourceFile = request.getFile();
+        mSourceUri = request.getUri();
+        mSourceStream = request.getInputStream();
+        mSink = null;
+        mTeeToFile = false;
+        mFormat = null;
+        mContentAware = false;
+        mGear = 0;
+        mLowLatency = false;
+        mMinSsim = 0;
+        mOutputs = request.getOutputs();
+        mKey = mSourceStream != null ? null : sourceKey() + "|" + mOutputs;
+    }
+
+    /**
+     * 压缩结果相同的请求返回相同的key，用来合并同时进行的相同请求，按解析以后的输出格式计算
+     *
+     * @return 从输入流压缩或者压缩到输出流的时候为null
+     */
+    String getKey() {
+        return mKey;
+    }
+
+    /**
+     * 文件加上长度和修改时间，原地改写过的文件不会合并到改写之前的压缩
+     */
+    private String sourceKey() {
+        if (mSourceFile != null) {
+            return mSourceFile.getAbsolutePath() + "|" + mSourceFile.length() + "|" + mSourceFile.lastModified();
+        }
+        return mSourceUri.toString();
+    }
+
+    /**
+     * 输出格式的名字，按内容选择的格式和固定的格式结果不同
+     */
+    private String formatName() {
+        return mContentAware ? mFormat + "+content" : mFormat.toString();
+    }
+
+    /**
+     * 把一个相同的请求加入这个压缩
+     *
+     * @return 这个压缩已经结束的时候返回false，需要重新压缩
+     */
+    synchronized boolean attach(CompressTask<?> task) {
+        if (mFinished) {
+            return false;
+        }
+        mTasks.add(task);
+        return true;
+    }
+
+    /**
+     * 所有的请求都已经取消的时候结束这个压缩，之后加入的请求会重新压缩
+     *
+     * @return 是否已经取消
+     */
+    boolean checkCancelled() {
+        synchronized (this) {
+            if (mTasks.isEmpty()) {
+                return false;
+            }
+            for (CompressTask<?> task : mTasks) {
+                if (!task.isCancelled()) {
+                    return false;
+                }
+            }
+        }
+        finish();
+        release();
+        return true;
+    }
+
+    /**
+     * 在当前线程上执行所有的阶段，完成以后把结果交给执行期间加入的请求
+     *
+     * @return 压缩后的文件，多尺寸压缩的结果见 {@link #getResults()}
+     */
+    File run() throws CompressException {
+        try {
+            int stage = PROBE;
+            while (stage != DONE) {
+                stage = runStage(stage);
+            }
+        } catch (CompressException e) {
+            fail(e);
+            throw e;
+        } catch (RuntimeException | Error e) {
+            fail(new CompressException(e.toString(), e));
+            throw e;
+        }
+        complete();
+        return mResult;
+    }
+
+    /**
+     * 执行一个阶段
+     *
+     * @return 下一个阶段，{@link #DONE}表示压缩已经完成
+     */
+    int runStage(int stage) throws CompressException {
+        try {
+            switch (stage) {
+                case PROBE:
+                    return probe() ? DONE : DECODE;
+                case DECODE:
+                    decode();
+                    return ENCODE;
+                case ENCODE:
+                    encode();
+                    return WRITE;
+                case WRITE:
+                    write();
+                    return DONE;
+                default:
+                    throw new IllegalArgumentException("unknown stage: " + stage);
+            }
+        } catch (OutOfMemoryError e) {
+            throw new CompressException("内存不足，无法压缩这张图片", e);
+        }
+    }
+
+    /**
+     * 多尺寸压缩后的文件，和 {@link PyramidRequest#getOutputs()} 的顺序相同
+     */
+    List<File> getResults() {
+        return mResults;
+    }
+
+    /**
+     * 普通的压缩的任务是 {@code CompressTask<File>}，多尺寸压缩的是 {@code CompressTask<List<File>>}
+     */
+    @SuppressWarnings("unchecked")
+    void complete() {
+        release();
+        Object result = mOutputs != null ? mResults : mResult;
+        for (CompressTask<?> task : finish()) {
+            ((CompressTask<Object>) task).complete(result);
+        }
+    }
+
+    void fail(CompressException e) {
+        release();
+        for (CompressTask<?> task : finish()) {
+            task.fail(e);
+        }
+    }
+
+    private List<CompressTask<?>> finish() {
+        List<CompressTask<?>> tasks;
+        synchronized (this) {
+            mFinished = true;
+            tasks = new ArrayList<>(mTasks);
+        }
+        mLuban.onJobFinished(this);
+        return tasks;
+    }
+
+    /**
+     * 把中间产生的图片放回图片池
+     */
+    void release() {
+        if (mSourceData != null) {
+            mSourceData.release();
+            mSourceData = null;
+        }
+        if (mSourceStream != null) {
+            //还没有开始读取就取消或者失败的时候也要关闭输入流，已经关闭的输入流再关闭一次没有影响
+            try {
+                mSourceStream.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (mBitmap != null) {
+            mBitmapPool.put(mBitmap);
+            mBitmap = null;
+        }
+        if (mEncoded != null) {
+            mEncoded.recycle();
+            mEncoded = null;
+        }
+        recycleOutputs();
+    }
+
+    /**
+     * @return 命中缓存或者不需要压缩，已经得到了结果
+     */
+    private boolean probe() throws CompressException {
+        if (mOutputs != null) {
+            mSourceData = openSource();
+            mPlan = mLuban.planPyramid(mSourceData.probe(), mOutputs);
+            return false;
+        }
+        ResultCache cache = mLuban.getResultCache();
+        //只有文件可以按修改时间判断内容有没有变化
+        if (cache != null && mSourceFile != null && mSourceFile.isFile()) {
+            mCacheKey = ResultCache.key(mSourceFile, mGear, formatName(), mLowLatency, mMinSsim);
+            File cached = cache.get(mCacheKey);
+            if (cached != null && useCached(cached)) {
+                return true;
+            }
+        }
+        mSourceData = openSource();
+        ImageProbe probe = mSourceData.probe();
+        mPlan = mLuban.plan(probe, mGear);
+        if (mPlan.passthrough) {
+            passthrough(OutputFormat.forMimeType(probe.getMimeType()));
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 使用缓存的压缩结果，复制一份，调用者删除或者修改压缩后的文件不会影响缓存
+     *
+     * @return 复制文件失败的时候返回false，重新压缩
+     */
+    private boolean useCached(File cached) throws CompressException {
+        if (mSink != null) {
+            //已经开始写入输出流以后不能再重新压缩
+            try {
+                new SourceData(cached).copyTo(mSink);
+                mSink.flush();
+            } catch (IOException e) {
+                throw new CompressException(e.getMessage(), e);
+            }
+            if (!mTeeToFile) {
+                return true;
+            }
+        }
+        File file = mLuban.getOutputStore().newFile(formatOf(cached));
+        File temp = OutputStore.tempFileFor(file);
+        try {
+            ResultCache.copy(cached, temp);
+            if (temp.renameTo(file)) {
+                mResult = file;
+                return true;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        temp.delete();
+        if (mSink != null) {
+            throw new CompressException("无法写入文件：" + file.getAbsolutePath());
+        }
+        return false;
+    }
+
+    /**
+     * 打开要压缩的图片，只能顺序读取的Uri和输入流在这里读取全部内容
+     */
+    private SourceData openSource() throws CompressException {
+        if (mSourceFile != null) {
+            return new SourceData(mSourceFile);
+        }
+        try {
+            if (mSourceUri != null) {
+                return SourceData.open(mLuban.getContext(), mSourceUri, mLuban.getOutputStore());
+            }
+            return SourceData.read(mSourceStream, mLuban.getOutputStore());
+        } catch (IOException e) {
+            throw new CompressException("无法读取图片", e);
+        }
+    }
+
+    /**
+     * 缓存的文件的格式，缓存里的文件名都以.jpg结尾，按文件头判断
+     */
+    private static OutputFormat formatOf(File file) {
+        try {
+            ImageHeader header = ImageHeader.read(file);
+            return OutputFormat.forMimeType(header != null ? header.mimeType : null);
+        } catch (IOException e) {
+            return OutputFormat.JPEG;
+        }
+    }
+
+    /**
+     * 不需要压缩的时候返回原图，不是文件的原图复制到 {@link OutputStore} 分配的文件。
+     * 压缩到输出流的时候把原图写入输出流
+     *
+     * @param format 原图的格式，决定复制以后的扩展名
+     */
+    private void passthrough(OutputFormat format) throws CompressException {
+        try {
+            if (mSink != null) {
+                mSourceData.copyTo(mSink);
+                mSink.flush();
+                if (!mTeeToFile) {
+                    return;
+                }
+            }
+            mResult = mSourceData.getFile();
+            if (mResult != null) {
+                return;
+            }
+        } catch (IOException e) {
+            throw new CompressException(e.getMessage(), e);
+        }
+        File file = mLuban.getOutputStore().newFile(format);
+        File temp = OutputStore.tempFileFor(file);
+        try {
+            mSourceData.copyTo(temp);
+            if (!temp.renameTo(file)) {
+                throw new IOException("无法写入文件：" + file.getAbsolutePath());
+            }
+        } catch (IOException e) {
+            temp.delete();
+            throw new CompressException(e.getMessage(), e);
+        }
+        mResult = file;
+    }
+
+    private void decode() throws CompressException {
+        try {
+            for (int retry = 0; ; retry++) {
+                try {
+                    decodeAndTransform();
+                    return;
+                } catch (OutOfMemoryError e) {
+                    if (mBitmap != null) {
+                        mBitmap.recycle();
+                        mBitmap = null;
+                    }
+                    //先释放图片池里的图片，再按更大的采样率重试
+                    mBitmapPool.clear();
+                    if (retry >= MAX_OOM_RETRIES) {
+                        throw e;
+                    }
+                    mPlan.downsample();
+                }
+            }
+        } finally {
+            //解码以后不再需要文件的内容
+            mSourceData.release();
+            mSourceData = null;
+        }
+    }
+
+    private void decodeAndTransform() throws CompressException {
+        CompressPlan plan = mPlan;
+        int[] size;
+        float complexity;
+        if (plan.tiled) {
+            size = plan.transformedSize((plan.sourceWidth + plan.inSampleSize - 1) / plan.inSampleSize,
+                    (plan.sourceHeight + plan.inSampleSize - 1) / plan.inSampleSize);
+            //分块解码没有整张的解码结果，按普通照片估算
+            complexity = SizePredictor.REFERENCE_COMPLEXITY;
+        } else {
+            decodeWhole(plan);
+            size = plan.transformedSize(mBitmap.getWidth(), mBitmap.getHeight());
+            complexity = SizePredictor.complexity(mBitmap);
+        }
+
+        CompressPlan next = null;
+        if (plan.nextGear != 0) {
+            next = planInMemory(plan.nextGear, size, plan.rotation, complexity);
+            if (next.inSampleSize > 1) {
+                //和按采样率解码中间文件得到的尺寸一样，但是和前面的缩放一起用滤波缩小，画质更好
+                size[0] = Math.max(1, (size[0] + next.inSampleSize - 1) / next.inSampleSize);
+                size[1] = Math.max(1, (size[1] + next.inSampleSize - 1) / next.inSampleSize);
+            }
+        }
+        if (plan.tiled) {
+            decodeTiled(plan, size[0], size[1]);
+        } else {
+            transform(size[0], size[1], plan.rotation);
+        }
+        if (next != null) {
+            mPlan = next;
+        }
+    }
+
+    private void decodeWhole(CompressPlan plan) throws CompressException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = plan.inSampleSize;
+        if (plan.config != null) {
+            options.inPreferredConfig = plan.config;
+        }
+        //解码到图片池里的图片上，尺寸按向上取整估算，4.4以上实际尺寸小一点也可以复用
+        mBitmapPool.prepareDecode(options, (plan.sourceWidth + plan.inSampleSize - 1) / plan.inSampleSize,
+                (plan.sourceHeight + plan.inSampleSize - 1) / plan.inSampleSize);
+        Bitmap bitmap = decodeInto(options);
+        if (bitmap == null) {
+            //有时候当应用程序把某个图片文件删除后，没有将媒体库数据库中的数据删除，导致虽然能够读取到图片的数据，
+            //但是在加载的时候图片无法加载成功。
+            throw new CompressException("您选择了损坏的图片");
+        }
+        mBitmap = bitmap;
+    }
+
+    /**
+     * 分块解码，每一条直接缩放、旋转到结果上
+     *
+     * @param width  缩放以后、旋转之前的宽
+     * @param height 缩放以后、旋转之前的高
+     */
+    private void decodeTiled(CompressPlan plan, int width, int height) throws CompressException {
+        BitmapRegionDecoder decoder;
+        try {
+            decoder = mSourceData.newRegionDecoder();
+        } catch (IOException e) {
+            throw new CompressException("您选择了损坏的图片", e);
+        }
+        if (decoder == null) {
+            throw new CompressException("您选择了损坏的图片");
+        }
+        try {
+            boolean swap = plan.rotation % 180 != 0;
+            Bitmap.Config config = plan.config != null ? plan.config : Bitmap.Config.ARGB_8888;
+            mBitmap = mBitmapPool.getOrCreate(swap ? height : width, swap ? width : height, config);
+            Matrix matrix = transformMatrix(decoder.getWidth(), decoder.getHeight(), width, height, plan.rotation);
+            if (!TiledDecoder.decode(decoder, plan.inSampleSize, plan.config, mBitmap, matrix, mBitmapPool)) {
+                throw new CompressException("您选择了损坏的图片");
+            }
+        } finally {
+            decoder.recycle();
+        }
+    }
+
+    /**
+     * 解码，复用的图片不合适的时候放回图片池，重新分配一张图片再解码一次
+     */
+    private Bitmap decodeInto(BitmapFactory.Options options) throws CompressException {
+        Bitmap inBitmap = options.inBitmap;
+        if (inBitmap == null) {
+            return mSourceData.decode(options);
+        }
+        Bitmap bitmap;
+        try {
+            bitmap = mSourceData.decode(options);
+        } catch (IllegalArgumentException e) {
+            bitmap = null;
+        }
+        if (bitmap != null) {
+            return bitmap;
+        }
+        mBitmapPool.put(inBitmap);
+        options.inBitmap = null;
+        return mSourceData.decode(options);
+    }
+
+    /**
+     * 第四种压缩方法：缩小并旋转以后直接在内存中按下一种压缩方法继续压缩，不再写入中间文件。
+     * 下一步的压缩计划按缩小并旋转以后的尺寸计算，这样两次缩小可以合并成一次
+     *
+     * @param size       缩小以后、旋转之前的宽高
+     * @param rotation   旋转的角度
+     * @param complexity 解码出来的图片的复杂度，见 {@link SizePredictor#complexity(Bitmap)}
+     */
+    private CompressPlan planInMemory(int gear, int[] size, int rotation, float complexity)
+            throws CompressException {
+        boolean swap = rotation % 180 != 0;
+        int width = swap ? size[1] : size[0];
+        int height = swap ? size[0] : size[1];
+        //原来中间文件是以最高质量编码的，按估算的大小计算下一步的压缩计划
+        QualitySearch.SizeModel model = mLuban.getSizePredictor().model((long) width * height, complexity);
+        return mLuban.planInMemory(width, height, (long) model.estimate(100), gear);
+    }
+
+    /**
+     * 把解码出来的图片缩放到指定的尺寸并旋转，画到图片池里的一张图片上，尺寸和角度都不变的时候不产生新的图片
+     *
+     * @param width    缩放以后、旋转之前的宽
+     * @param height   缩放以后、旋转之前的高
+     * @param rotation 旋转的角度
+     */
+    private void transform(int width, int height, int rotation) {
+        Bitmap src = mBitmap;
+        if (rotation % 360 == 0 && width == src.getWidth() && height == src.getHeight()) {
+            return;
+        }
+        boolean swap = rotation % 180 != 0;
+        Bitmap.Config config = src.getConfig() != null ? src.getConfig() : Bitmap.Config.ARGB_8888;
+        Bitmap dst = mBitmapPool.getOrCreate(swap ? height : width, swap ? width : height, config);
+
+        Matrix matrix = transformMatrix(src.getWidth(), src.getHeight(), width, height, rotation);
+        Canvas canvas = new Canvas(dst);
+        canvas.drawBitmap(src, matrix, new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG));
+        canvas.setBitmap(null);
+        replaceBitmap(dst);
+    }
+
+    /**
+     * 把 srcWidth×srcHeight 的图片缩放到 width×height 再旋转的变换，旋转以后的图片在画布的左上角
+     */
+    private static Matrix transformMatrix(int srcWidth, int srcHeight, int width, int height, int rotation) {
+        Matrix matrix = new Matrix();
+        matrix.setScale((float) width / srcWidth, (float) height / srcHeight);
+        if (rotation % 360 != 0) {
+            matrix.postRotate(rotation);
+            //旋转以后移回到画布里
+            RectF bounds = new RectF(0, 0, srcWidth, srcHeight);
+            matrix.mapRect(bounds);
+            matrix.postTranslate(-bounds.left, -bounds.top);
+        }
+        return matrix;
+    }
+
+    private void replaceBitmap(Bitmap bitmap) {
+        if (bitmap != mBitmap) {
+            mBitmapPool.put(mBitmap);
+            mBitmap = bitmap;
+        }
+    }
+
+    private void encode() throws CompressException {
+        if (mOutputs != null) {
+            encodeOutputs();
+            return;
+        }
+        CompressPlan plan = mPlan;
+        int width = mBitmap.getWidth();
+        int height = mBitmap.getHeight();
+        OutputFormat format = mFormat.supporting(width, height);
+        //不支持无损WebP的时候用PNG，PNG放不下目标大小的时候仍然用有损WebP
+        OutputFormat lossy = mFormat.lossy().supporting(width, height);
+        //文件大小按K取整以后不超过期望大小，只有最终的结果会写入文件
+        long targetBytes = plan.targetSize > 0 ? plan.targetSize * 1024 + 1023 : 0;
+        long losslessLimit = targetBytes;
+        if (mContentAware) {
+            ImageContent content = ImageContent.classify(mBitmap);
+            OutputFormat routed = contentFormat(content, format, width, height);
+            if (routed != format && routed.isLossless() && !(content.hasAlpha() && !lossy.keepsAlpha())) {
+                //截图按无损压缩，比默认的格式估算的大小还大的时候仍然使用默认的格式
+                QualitySearch.SizeModel model = mLuban.getSizePredictor(lossy)
+                        .model((long) width * height, SizePredictor.complexity(mBitmap));
+                long estimate = (long) model.estimate(Math.min(plan.quality, lossy.maxQuality()));
+                losslessLimit = targetBytes > 0 ? Math.min(targetBytes, estimate) : estimate;
+            } else {
+                lossy = routed.lossy().supporting(width, height);
+            }
+            format = routed;
+        }
+        mEncoded = encodeAs(mBitmap, -1, format, lossy, plan.quality, targetBytes, losslessLimit,
+                mLowLatency, mMinSsim);
+        mBitmapPool.put(mBitmap);
+        mBitmap = null;
+    }
+
+    /**
+     * 按图片的内容选择的格式，见 {@link Luban#setContentAware(boolean)}
+     *
+     * @param format 压缩级别或者请求的格式
+     */
+    private static OutputFormat contentFormat(ImageContent content, OutputFormat format, int width, int height) {
+        if (format.isLossless()) {
+            return format;
+        }
+        if (content.isGraphic()) {
+            //Android 10以前质量为100的WebP仍然是有损的，截图的文件反而会变大，用PNG
+            return OutputFormat.WEBP_LOSSLESS.supports(width, height) ? OutputFormat.WEBP_LOSSLESS : OutputFormat.PNG;
+        }
+        if (content.hasAlpha() && !format.keepsAlpha()) {
+            return OutputFormat.WEBP.keepsAlpha() && OutputFormat.WEBP.supports(width, height)
+                    ? OutputFormat.WEBP : OutputFormat.PNG;
+        }
+        return format;
+    }
+
+    /**
+     * 按指定的格式编码，记录到 {@link EncodeStats}，实际使用的格式保存到 {@link #mEncodedFormat} 或者
+     * {@link #mEncodedOutputFormats}。
+     * 无损压缩只编码一次，超过限制的时候改用有损格式；有损压缩按画质、目标大小或者固定质量编码
+     *
+     * @param index         多尺寸压缩的第几个尺寸，单张压缩为-1
+     * @param lossy         有损压缩的格式，format是有损格式的时候和它相同
+     * @param targetBytes   目标大小（字节），为0的时候不限制
+     * @param losslessLimit 无损压缩的大小限制，为0的时候不限制
+     * @param minSsim       按画质压缩的SSIM阈值，为0的时候不使用
+     */
+    private QualitySearch.Result encodeAs(Bitmap bitmap, int index, OutputFormat format, OutputFormat lossy,
+                                          int quality, long targetBytes, long losslessLimit,
+                                          boolean lowLatency, float minSsim) {
+        long start = System.nanoTime();
+        long pixels = (long) bitmap.getWidth() * bitmap.getHeight();
+        QualitySearch.Result result = null;
+        int encodes = 0;
+        if (format.isLossless()) {
+            EncodeBuffer stream = EncodeBuffer.obtain();
+            QualitySearch.encoder(bitmap, format.getCompressFormat()).encode(100, stream);
+            if (losslessLimit == 0 || stream.size() <= losslessLimit) {
+                result = new QualitySearch.Result(100, 1, true, stream);
+            } else {
+                stream.recycle();
+                encodes = 1;
+                format = lossy;
+            }
+        }
+        if (result == null) {
+            QualitySearch.Encoder encoder = QualitySearch.encoder(bitmap, format.getCompressFormat());
+            SizePredictor predictor = mLuban.getSizePredictor(format);
+            float complexity = SizePredictor.complexity(bitmap);
+            quality = Math.min(quality, format.maxQuality());
+            if (minSsim > 0) {
+                //按画质压缩
+                result = new PerceptualSearch(minSsim).search(bitmap, format.getCompressFormat(), quality);
+                predictor.learn(pixels, complexity, result.getQuality(), result.size());
+            } else if (targetBytes > 0) {
+                if (lowLatency) {
+                    CompressPipeline pipeline = mLuban.getPipeline();
+                    result = QualitySearch.DEFAULT.search(encoder, targetBytes, quality,
+                            pipeline.encodeHelpers(), pipeline.encodeParallelism());
+                    predictor.learn(pixels, complexity, result.getQuality(), result.size());
+                } else {
+                    //每次编码的大小都会用来修正估算
+                    result = QualitySearch.DEFAULT.search(encoder, targetBytes, quality,
+                            predictor.model(pixels, complexity));
+                }
+            } else {
+                EncodeBuffer stream = EncodeBuffer.obtain();
+                encoder.encode(quality, stream);
+                result = new QualitySearch.Result(quality, 1, true, stream);
+                predictor.learn(pixels, complexity, quality, stream.size());
+            }
+            predictor.save();
+        }
+        if (index < 0) {
+            mEncodedFormat = format;
+        } else {
+            mEncodedOutputFormats[index] = format;
+        }
+        mLuban.getEncodeStats().record(format, pixels, result.size(),
+                encodes + result.getEncodeCount(), System.nanoTime() - start);
+        return result;
+    }
+
+    private void write() throws CompressException {
+        if (mOutputs != null) {
+            writeOutputs();
+            return;
+        }
+        try {
+            if (mSink != null) {
+                //先写入输出流，上传可以马上开始
+                mEncoded.writeTo(mSink);
+                mSink.flush();
+            }
+            if (mSink == null || mTeeToFile) {
+                mResult = writeFile(mEncoded, mEncodedFormat);
+            }
+            if (mCacheKey != null) {
+                mLuban.getResultCache().put(mCacheKey, mEncoded);
+            }
+        } catch (IOException e) {
+            throw new CompressException(e.getMessage(), e);
+        } finally {
+            mEncoded.recycle();
+            mEncoded = null;
+        }
+    }
+
+    /**
+     * 写入 {@link OutputStore} 分配的文件，先写入临时文件，写入的过程中崩溃不会留下不完整的结果
+     */
+    private File writeFile(QualitySearch.Result encoded, OutputFormat format) throws CompressException, IOException {
+        File file = mLuban.getOutputStore().newFile(format);
+        File temp = OutputStore.tempFileFor(file);
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(temp);
+            encoded.writeTo(fos);
+            fos.close();
+            fos = null;
+            if (!temp.renameTo(file)) {
+                throw new IOException("无法写入文件：" + file.getAbsolutePath());
+            }
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        } finally {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return file;
+    }
+
+    /**
+     * 多尺寸压缩：从最大的尺寸开始，每个尺寸都从比它大一级的图片缩小得到，然后同时编码所有的尺寸。
+     * 第一个尺寸在当前线程上编码，其余的交给编码的帮助线程，帮助线程忙的时候由当前线程编码
+     */
+    private void encodeOutputs() throws CompressException {
+        int count = mOutputs.size();
+        Bitmap top = mBitmap;
+        mBitmap = null;
+        //按面积从大到小排列
+        Integer[] order = new Integer[count];
+        final int[][] sizes = new int[count][];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+            sizes[i] = mOutputs.get(i).fit(top.getWidth(), top.getHeight());
+        }
+        mEncodedOutputFormats = new OutputFormat[count];
+        for (int i = 0; i < count; i++) {
+            mEncodedOutputFormats[i] = mOutputs.get(i).getFormat().supporting(sizes[i][0], sizes[i][1]);
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                long x = (long) sizes[a][0] * sizes[a][1];
+                long y = (long) sizes[b][0] * sizes[b][1];
+                return x > y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+
+        Bitmap[] bitmaps = new Bitmap[count];
+        mEncodedOutputs = new QualitySearch.Result[count];
+        //order[1]以后的尺寸按顺序交给其他线程编码
+        List<FutureTask<QualitySearch.Result>> tasks = new ArrayList<>(count);
+        try {
+            Bitmap above = top;
+            for (int index : order) {
+                Bitmap bitmap = scaleDown(above, sizes[index][0], sizes[index][1]);
+                bitmaps[index] = bitmap;
+                above = bitmap;
+            }
+            Executor helpers = mLuban.getPipeline().encodeHelpers();
+            for (int i = 1; i < count; i++) {
+                final int index = order[i];
+                final Bitmap bitmap = bitmaps[index];
+                FutureTask<QualitySearch.Result> task = new FutureTask<>(new Callable<QualitySearch.Result>() {
+                    @Override
+                    public QualitySearch.Result call() throws Exception {
+                        return encodeOutput(bitmap, index);
+                    }
+                });
+                tasks.add(task);
+                try {
+                    helpers.execute(task);
+                } catch (RejectedExecutionException ignored) {
+                    //下面由当前线程执行
+                }
+            }
+            try {
+                mEncodedOutputs[order[0]] = encodeOutput(bitmaps[order[0]], order[0]);
+            } finally {
+                //其他线程都编码完以后才能放回图片
+                Throwable error = null;
+                for (int i = 1; i < count; i++) {
+                    FutureTask<QualitySearch.Result> task = tasks.get(i - 1);
+                    //还没有开始执行的编码由当前线程执行，已经开始或者完成的不会重复执行
+                    task.run();
+                    try {
+                        mEncodedOutputs[order[i]] = QualitySearch.await(task);
+                    } catch (ExecutionException e) {
+                        if (error == null) {
+                            error = e.getCause();
+                        }
+                    }
+                }
+                if (error instanceof Error) {
+                    throw (Error) error;
+                }
+                if (error != null) {
+                    throw new CompressException(String.valueOf(error), error);
+                }
+            }
+        } finally {
+            mBitmapPool.put(top);
+            for (Bitmap bitmap : bitmaps) {
+                //相同尺寸的输出共用一张图片
+                if (bitmap != top) {
+                    mBitmapPool.put(bitmap);
+                }
+            }
+        }
+    }
+
+    /**
+     * 把图片缩小到指定的尺寸，尺寸相同的时候直接返回原来的图片
+     */
+    private Bitmap scaleDown(Bitmap src, int width, int height) {
+        if (width == src.getWidth() && height == src.getHeight()) {
+            return src;
+        }
+        Bitmap.Config config = src.getConfig() != null ? src.getConfig() : Bitmap.Config.ARGB_8888;
+        Bitmap dst = mBitmapPool.getOrCreate(width, height, config);
+        Canvas canvas = new Canvas(dst);
+        canvas.drawBitmap(src, transformMatrix(src.getWidth(), src.getHeight(), width, height, 0),
+                new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG));
+        canvas.setBitmap(null);
+        return dst;
+    }
+
+    private QualitySearch.Result encodeOutput(Bitmap bitmap, int index) {
+        OutputSpec output = mOutputs.get(index);
+        long targetBytes = output.getTargetSize() > 0 ? output.getTargetSize() * 1024 + 1023 : 0;
+        OutputFormat format = mEncodedOutputFormats[index];
+        OutputFormat lossy = output.getFormat().lossy().supporting(bitmap.getWidth(), bitmap.getHeight());
+        return encodeAs(bitmap, index, format, lossy, output.getQuality(), targetBytes, targetBytes,
+                false, 0);
+    }
+
+    private void writeOutputs() throws CompressException {
+        List<File> files = new ArrayList<>(mEncodedOutputs.length);
+        boolean success = false;
+        try {
+            for (int i = 0; i < mEncodedOutputs.length; i++) {
+                files.add(writeFile(mEncodedOutputs[i], mEncodedOutputFormats[i]));
+            }
+            success = true;
+        } catch (IOException e) {
+            throw new CompressException(e.getMessage(), e);
+        } finally {
+            if (!success) {
+                //一部分写入失败的时候删除已经写入的文件
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            recycleOutputs();
+        }
+        mResults = Collections.unmodifiableList(files);
+    }
+
+    private void recycleOutputs() {
+        if (mEncodedOutputs != null) {
+            for (QualitySearch.Result encoded : mEncodedOutputs) {
+                if (encoded != null) {
+                    encoded.recycle();
+                }
+            }
+            mEncodedOutputs = null;
+        }
+    }
+}
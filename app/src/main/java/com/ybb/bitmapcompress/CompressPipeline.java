@@ -0,0 +1,144 @@
+package com.ybb.bitmapcompress;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * 分阶段执行压缩的流水线
+ * <p>
+ * 读取图片信息、解码、编码、写入文件分别在四个线程池里执行，相邻的阶段之间通过有界的队列交接。
+ * 一张图片在等待读写存储的时候，其他图片可以同时在解码或编码，批量压缩的时候CPU和存储都不会闲着。
+ * <p>
+ * 下游的队列满了以后上游的线程会等待，而不是继续解码更多的图片，所以同时存在的图片数量是有限的。
+ * 只有第一个阶段的队列满了的时候，提交新的压缩会被拒绝。
+ */
+public final class CompressPipeline {
+
+    /**
+     * 默认的读写文件的线程数
+     */
+    public static final int DEFAULT_IO_THREAD_COUNT = 2;
+
+    /**
+     * 队列满了以后等待队列空出位置
+     */
+    private static final RejectedExecutionHandler WAIT_FOR_QUEUE = new RejectedExecutionHandler() {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("pipeline has been shut down");
+            }
+            try {
+                executor.getQueue().put(r);
+                //空闲的线程可能已经超时退出了
+                executor.prestartCoreThread();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException(e);
+            }
+        }
+    };
+
+    private final ThreadPoolExecutor[] mStages = new ThreadPoolExecutor[4];
+    /**
+     * 低延迟模式下帮助编码线程同时尝试多个压缩质量
+     */
+    private final ThreadPoolExecutor mEncodeHelpers;
+    private final int mCpuThreadCount;
+
+    public CompressPipeline() {
+        this(DEFAULT_IO_THREAD_COUNT, CompressExecutors.DEFAULT_THREAD_COUNT, CompressExecutors.DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param ioThreadCount  读取图片信息和写入文件的线程数
+     * @param cpuThreadCount 解码和编码的线程数
+     * @param queueCapacity  等待开始压缩的请求最多有多少个
+     */
+    public CompressPipeline(int ioThreadCount, int cpuThreadCount, int queueCapacity) {
+        mStages[CompressJob.PROBE] = CompressExecutors.newBoundedExecutor(ioThreadCount, queueCapacity,
+                "Luban-probe", new ThreadPoolExecutor.AbortPolicy());
+        //解码和编码之间的队列里放的是解码好的图片，每个线程最多等一张
+        mStages[CompressJob.DECODE] = CompressExecutors.newBoundedExecutor(cpuThreadCount, cpuThreadCount,
+                "Luban-decode", WAIT_FOR_QUEUE);
+        mStages[CompressJob.ENCODE] = CompressExecutors.newBoundedExecutor(cpuThreadCount, cpuThreadCount,
+                "Luban-encode", WAIT_FOR_QUEUE);
+        mStages[CompressJob.WRITE] = CompressExecutors.newBoundedExecutor(ioThreadCount, ioThreadCount * 2,
+                "Luban-write", WAIT_FOR_QUEUE);
+        //忙不过来的时候直接丢弃，提交的编码线程会自己执行没有开始的编码
+        mEncodeHelpers = CompressExecutors.newBoundedExecutor(cpuThreadCount, cpuThreadCount,
+                "Luban-encode-helper", new ThreadPoolExecutor.DiscardPolicy());
+        mCpuThreadCount = cpuThreadCount;
+    }
+
+    /**
+     * 提交一个压缩请求
+     *
+     * @throws RejectedExecutionException 等待开始压缩的请求太多了
+     */
+    void submit(CompressJob job) {
+        mStages[CompressJob.PROBE].execute(new Stage(job, CompressJob.PROBE));
+    }
+
+    /**
+     * 读写文件的线程池，用于不适合在调用者线程上执行的I/O操作
+     */
+    Executor ioExecutor() {
+        return mStages[CompressJob.PROBE];
+    }
+
+    /**
+     * 低延迟模式下并行尝试压缩质量用的线程池
+     *
+     * @see QualitySearch#search(QualitySearch.Encoder, long, int, Executor, int)
+     */
+    Executor encodeHelpers() {
+        return mEncodeHelpers;
+    }
+
+    /**
+     * 低延迟模式下每一轮同时尝试几个压缩质量
+     */
+    int encodeParallelism() {
+        return mCpuThreadCount + 1;
+    }
+
+    private class Stage implements Runnable {
+        private final CompressJob mJob;
+        private final int mStage;
+
+        Stage(CompressJob job, int stage) {
+            mJob = job;
+            mStage = stage;
+        }
+
+        @Override
+        public void run() {
+            if (mJob.checkCancelled()) {
+                return;
+            }
+            int next;
+            try {
+                next = mJob.runStage(mStage);
+            } catch (CompressException e) {
+                mJob.fail(e);
+                return;
+            } catch (Throwable e) {
+                //其他的异常和错误（例如StackOverflowError）也要结束压缩，否则等待这个压缩的请求永远不会返回
+                mJob.fail(new CompressException(e.toString(), e));
+                return;
+            }
+            if (next == CompressJob.DONE) {
+                mJob.complete();
+                return;
+            }
+            try {
+                mStages[next].execute(new Stage(mJob, next));
+            } catch (RejectedExecutionException e) {
+                mJob.fail(new CompressException("压缩已中断", e));
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.ybb.bitmapcompress;
+
+import android.graphics.Bitmap;
+
+/**
+ * 一次压缩的执行计划，由 {@link Luban} 根据压缩级别和图片的宽高、旋转角度计算出来
+ * <p>
+ * 执行的顺序是：按采样率解码 -> 缩放并旋转（合并成一步） -> 按质量或目标大小编码 -> 写入文件
+ */
+final class CompressPlan {
+
+    /**
+     * 不需要压缩，直接返回原图
+     */
+    boolean passthrough;
+
+    /**
+     * 要解码的图片路径
+     */
+    String sourcePath;
+    /**
+     * 原图的格式，决定能不能分块解码
+     */
+    String sourceMimeType;
+    int sourceWidth;
+    int sourceHeight;
+    int inSampleSize = 1;
+    /**
+     * 解码使用的颜色格式，为null的时候使用默认的ARGB_8888
+     */
+    Bitmap.Config config;
+    /**
+     * 是否分块解码，见 {@link TiledDecoder}
+     */
+    boolean tiled;
+    /**
+     * 解码完成之前保存在内存里的原图数据（字节），见 {@link SourceData#bufferedLength(long)}
+     */
+    long sourceBytes;
+
+    /**
+     * 解码后缩放到的尺寸（旋转之前），为0的时候不缩放。只有解码出来的图片比它大的时候才会缩放
+     */
+    int scaleWidth;
+    int scaleHeight;
+    /**
+     * 按原图的尺寸等比缩放，不和 {@link #scaleWidth} 同时使用
+     */
+    float scale = 1;
+    /**
+     * 旋转的角度
+     */
+    int rotation;
+
+    /**
+     * 固定的压缩质量，{@link #targetSize}大于0的时候作为质量搜索的起点
+     */
+    int quality = 100;
+    /**
+     * 期望的文件大小（K），大于0的时候降低质量直到文件小于这个大小
+     */
+    long targetSize;
+
+    /**
+     * 缩放并旋转以后在内存中继续使用的压缩级别，为0的时候没有下一步，见 {@link Luban#planInMemory}
+     */
+    int nextGear;
+
+    static CompressPlan passthrough() {
+        CompressPlan plan = new CompressPlan();
+        plan.passthrough = true;
+        return plan;
+    }
+
+    /**
+     * 缩放以后、旋转之前的宽高
+     *
+     * @param width  解码出来的宽
+     * @param height 解码出来的高
+     */
+    int[] transformedSize(int width, int height) {
+        if (scale != 1) {
+            return new int[]{Math.max(1, Math.round(sourceWidth * scale)), Math.max(1, Math.round(sourceHeight * scale))};
+        }
+        if (scaleWidth > 0 && (width > scaleWidth || height > scaleHeight)) {
+            return new int[]{scaleWidth, scaleHeight};
+        }
+        return new int[]{width, height};
+    }
+
+    /**
+     * 调整采样率和颜色格式，让 {@link #estimateMemory()} 不超过budget：
+     * 先在输出尺寸不变的前提下提高采样率，再改成分块解码，再改用RGB_565，最后才降低输出尺寸。
+     * 内存里的原图数据不能减少，图片只能使用剩下的部分
+     */
+    void fitMemory(long budget) {
+        if (passthrough || sourceWidth <= 0 || sourceHeight <= 0) {
+            return;
+        }
+        budget = Math.max(0, budget - sourceBytes);
+        while (bitmapMemory(tiled) > budget) {
+            int width = (sourceWidth + inSampleSize * 2 - 1) / (inSampleSize * 2);
+            int height = (sourceHeight + inSampleSize * 2 - 1) / (inSampleSize * 2);
+            int[] size = transformedSize((sourceWidth + inSampleSize - 1) / inSampleSize,
+                    (sourceHeight + inSampleSize - 1) / inSampleSize);
+            if (width < size[0] || height < size[1]) {
+                break;
+            }
+            inSampleSize *= 2;
+        }
+        if (bitmapMemory(tiled) > budget && TiledDecoder.supports(sourceMimeType)) {
+            tiled = true;
+            if (bitmapMemory(tiled) >= bitmapMemory(false)) {
+                //不需要缩放和旋转的时候分块解码并不能省内存
+                tiled = false;
+            }
+        }
+        if (bitmapMemory(tiled) > budget && config != Bitmap.Config.RGB_565) {
+            //内存不够的时候放弃透明度，解码出来的图片按不透明的图片选择输出格式
+            config = Bitmap.Config.RGB_565;
+        }
+        while (bitmapMemory(tiled) > budget && (sourceWidth > inSampleSize || sourceHeight > inSampleSize)) {
+            downsample();
+        }
+    }
+
+    /**
+     * 采样率加倍，输出尺寸减半，用于内存不够的时候
+     */
+    void downsample() {
+        inSampleSize *= 2;
+        if (scale != 1) {
+            scale /= 2;
+        }
+        if (scaleWidth > 0) {
+            scaleWidth = Math.max(1, scaleWidth / 2);
+            scaleHeight = Math.max(1, scaleHeight / 2);
+        }
+    }
+
+    /**
+     * 估算执行这个计划时最多占用的内存（字节）：内存里的原图数据，加上同时存在的图片
+     */
+    long estimateMemory() {
+        if (passthrough || sourceWidth <= 0 || sourceHeight <= 0) {
+            return 0;
+        }
+        return sourceBytes + bitmapMemory(tiled);
+    }
+
+    /**
+     * 同时存在的图片最多占用的内存：解码出来的图片和缩放、旋转以后的图片，
+     * 分块解码的时候是一条和缩放、旋转以后的图片
+     */
+    private long bitmapMemory(boolean tiled) {
+        int bytesPerPixel = config == Bitmap.Config.RGB_565 ? 2 : 4;
+        int width = (sourceWidth + inSampleSize - 1) / inSampleSize;
+        int height = (sourceHeight + inSampleSize - 1) / inSampleSize;
+        long decoded = (long) width * height * bytesPerPixel;
+        int[] size = transformedSize(width, height);
+        long transformed = (long) size[0] * size[1] * bytesPerPixel;
+        if (tiled) {
+            return Math.min(decoded, TiledDecoder.TILE_BYTES) + transformed;
+        }
+        if (size[0] == width && size[1] == height && rotation % 360 == 0) {
+            return decoded;
+        }
+        return decoded + transformed;
+    }
+}
@@ -0,0 +1,250 @@
+package com.ybb.bitmapcompress;
+
+import android.net.Uri;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.Executor;
+
+import static com.ybb.bitmapcompress.Preconditions.checkNotNull;
+
+/**
+ * 一次压缩请求
+ * <p>
+ * 由 {@link Luban#load(File)}、{@link Luban#load(Uri)} 或 {@link Luban#load(InputStream)} 返回的 {@link Builder} 创建，创建以后不可修改，
+ * 所以同一个 {@link Luban} 可以同时执行多个压缩请求，请求之间互不影响。
+ */
+public final class CompressRequest {
+
+    private final File mFile;
+    private final Uri mUri;
+    private final InputStream mInputStream;
+    private final int mGear;
+    private final OnCompressListener mListener;
+    private final Executor mCallbackExecutor;
+    private final boolean mLowLatency;
+    private final float mMinSsim;
+    private final OutputStream mOutput;
+    private final boolean mTeeToFile;
+    private final OutputFormat mOutputFormat;
+
+    private CompressRequest(Builder builder) {
+        mFile = builder.mFile;
+        mUri = builder.mUri;
+        mInputStream = builder.mInputStream;
+        mGear = builder.mGear;
+        mListener = builder.mListener;
+        mCallbackExecutor = builder.mCallbackExecutor;
+        mLowLatency = builder.mLowLatency;
+        mMinSsim = builder.mMinSsim;
+        mOutput = builder.mOutput;
+        mTeeToFile = builder.mTeeToFile;
+        mOutputFormat = builder.mOutputFormat;
+    }
+
+    /**
+     * 要压缩的图片文件，从Uri或者输入流压缩的时候为null
+     */
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * 要压缩的图片的Uri，见 {@link Luban#load(Uri)}
+     */
+    public Uri getUri() {
+        return mUri;
+    }
+
+    /**
+     * 要压缩的图片的输入流，压缩的时候读取全部内容并关闭
+     */
+    public InputStream getInputStream() {
+        return mInputStream;
+    }
+
+    /**
+     * 压缩级别，{@link Luban#FIRST_GEAR} ~ {@link Luban#FOURTH_GEAR}
+     */
+    public int getGear() {
+        return mGear;
+    }
+
+    public OnCompressListener getListener() {
+        return mListener;
+    }
+
+    /**
+     * 异步压缩的回调线程，为null的时候在主线程上回调
+     */
+    public Executor getCallbackExecutor() {
+        return mCallbackExecutor;
+    }
+
+    /**
+     * 是否优先缩短这一张图片的压缩时间
+     */
+    public boolean isLowLatency() {
+        return mLowLatency;
+    }
+
+    /**
+     * 按画质压缩时的SSIM阈值，为0的时候按文件大小压缩
+     */
+    public float getMinSsim() {
+        return mMinSsim;
+    }
+
+    /**
+     * 输出格式，为null的时候使用压缩级别默认的格式，见 {@link Luban#setOutputFormat(int, OutputFormat)}
+     */
+    public OutputFormat getOutputFormat() {
+        return mOutputFormat;
+    }
+
+    /**
+     * 压缩后的数据写入的输出流，为null的时候写入文件，见 {@link Builder#compressTo(OutputStream)}
+     */
+    public OutputStream getOutput() {
+        return mOutput;
+    }
+
+    /**
+     * 写入输出流的同时是否也写入文件
+     */
+    public boolean isTeeToFile() {
+        return mTeeToFile;
+    }
+
+    public static final class Builder {
+        private final Luban mLuban;
+        private File mFile;
+        private Uri mUri;
+        private InputStream mInputStream;
+        private int mGear = Luban.THIRD_GEAR;
+        private OnCompressListener mListener;
+        private Executor mCallbackExecutor;
+        private boolean mLowLatency;
+        private float mMinSsim;
+        private OutputStream mOutput;
+        private boolean mTeeToFile;
+        private OutputFormat mOutputFormat;
+
+        Builder(Luban luban, File file) {
+            mLuban = luban;
+            mFile = file;
+        }
+
+        Builder(Luban luban, Uri uri) {
+            mLuban = luban;
+            mUri = uri;
+        }
+
+        Builder(Luban luban, InputStream in) {
+            mLuban = luban;
+            mInputStream = in;
+        }
+
+        public Builder putGear(int gear) {
+            mGear = gear;
+            return this;
+        }
+
+        public Builder setCompressListener(OnCompressListener listener) {
+            mListener = listener;
+            return this;
+        }
+
+        /**
+         * 设置异步压缩的回调线程，例如 {@link CompressExecutors#mainThread()} 或 {@link CompressExecutors#immediate()}
+         */
+        public Builder callbackOn(Executor executor) {
+            mCallbackExecutor = executor;
+            return this;
+        }
+
+        /**
+         * 低延迟模式：按目标大小压缩的时候在多个线程上同时尝试几个压缩质量。
+         * 会多编码几次，占用更多的CPU，适合用户正在等待结果的单张图片（例如发送图片），不适合批量压缩。
+         */
+        public Builder setLowLatency(boolean lowLatency) {
+            mLowLatency = lowLatency;
+            return this;
+        }
+
+        /**
+         * 按画质压缩：不再按压缩级别对应的文件大小压缩，而是使用和原图的相似度（SSIM）不低于minSsim的最低质量，
+         * 例如 {@link PerceptualSearch#DEFAULT_MIN_SSIM}。压缩级别仍然决定图片的尺寸，为0的时候不使用。
+         */
+        public Builder setMinSsim(float minSsim) {
+            if (minSsim < 0 || minSsim >= 1) {
+                throw new IllegalArgumentException("minSsim must be in [0, 1): " + minSsim);
+            }
+            mMinSsim = minSsim;
+            return this;
+        }
+
+        /**
+         * 指定输出格式，例如 {@link OutputFormat#WEBP}，不指定的时候使用压缩级别默认的格式。
+         * 按目标大小和按画质压缩对所有的格式都有效
+         */
+        public Builder setOutputFormat(OutputFormat format) {
+            mOutputFormat = format;
+            return this;
+        }
+
+        /**
+         * 把压缩后的数据直接写入out，例如上传的请求体，编码完成以后马上开始写入，不需要先写入文件再读出来。
+         * 写完以后只调用 {@link OutputStream#flush()}，不会关闭out。
+         * 默认不再写入文件，{@link OnCompressListener#onSuccess(File)} 收到的文件为null，见 {@link #teeToFile(boolean)}
+         */
+        public Builder compressTo(OutputStream out) {
+            mOutput = checkNotNull(out, "out cannot be null");
+            return this;
+        }
+
+        /**
+         * 把压缩后的数据直接写入channel，见 {@link #compressTo(OutputStream)}
+         */
+        public Builder compressTo(WritableByteChannel channel) {
+            return compressTo(Channels.newOutputStream(checkNotNull(channel, "channel cannot be null")));
+        }
+
+        /**
+         * 压缩到输出流的时候同时写入文件，先写输出流再写文件
+         */
+        public Builder teeToFile(boolean teeToFile) {
+            mTeeToFile = teeToFile;
+            return this;
+        }
+
+        public CompressRequest build() {
+            if (mFile == null && mUri == null && mInputStream == null) {
+                throw new NullPointerException("the image cannot be null, please call .load() before this method!");
+            }
+            return new CompressRequest(this);
+        }
+
+        /**
+         * 在当前线程上压缩，压缩完成后在当前线程上回调
+         */
+        public CompressRequest launch() {
+            CompressRequest request = build();
+            mLuban.launch(request);
+            return request;
+        }
+
+        /**
+         * 在压缩线程池中压缩，不会阻塞当前线程。
+         *
+         * @return 压缩任务的句柄，可以用来取消压缩或者等待压缩结果
+         * @see Luban#launchAsync(CompressRequest)
+         */
+        public CompressTask<File> launchAsync() {
+            return mLuban.launchAsync(build());
+        }
+    }
+}
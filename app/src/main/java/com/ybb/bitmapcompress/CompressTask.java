@@ -0,0 +1,141 @@
+package com.ybb.bitmapcompress;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * 一次异步压缩的句柄，普通的压缩得到一个文件，多尺寸压缩得到一组文件
+ * <p>
+ * 可以通过 {@link #cancel(boolean)} 取消压缩，取消以后不会再回调 {@link OnCompressListener}
+ * 或者 {@link OnPyramidCompressListener}；也可以通过 {@link #get()} 阻塞等待压缩后的文件。
+ * <p>
+ * 同样的请求同时压缩的时候共用一次压缩，取消只对这一个句柄生效，其他的请求照常收到压缩后的文件。
+ *
+ * @param <T> 压缩结果：{@link File} 或者多尺寸压缩的 {@code List<File>}
+ */
+public class CompressTask<T> extends FutureTask<T> {
+
+    /**
+     * 压缩结果的回调，统一两种压缩的监听器
+     */
+    interface Callback<T> {
+        void onSuccess(T result);
+
+        void onError(String e);
+    }
+
+    private final Callback<T> mCallback;
+    private final Executor mCallbackExecutor;
+    private volatile boolean mCallbackCancelled;
+
+    /**
+     * 构造FutureTask需要的任务，不会被运行，见 {@link #run()}
+     */
+    private static final Runnable NOTHING = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    /**
+     * @param callback 为null的时候不回调，只能通过 {@link #get()} 得到结果
+     */
+    CompressTask(Callback<T> callback, Executor callbackExecutor) {
+        super(NOTHING, null);
+        mCallback = callback;
+        mCallbackExecutor = callbackExecutor;
+    }
+
+    static CompressTask<File> of(final OnCompressListener listener, Executor callbackExecutor) {
+        if (listener == null) {
+            return new CompressTask<>(null, callbackExecutor);
+        }
+        return new CompressTask<>(new Callback<File>() {
+            @Override
+            public void onSuccess(File result) {
+                listener.onSuccess(result);
+            }
+
+            @Override
+            public void onError(String e) {
+                listener.onError(e);
+            }
+        }, callbackExecutor);
+    }
+
+    static CompressTask<List<File>> of(final OnPyramidCompressListener listener, Executor callbackExecutor) {
+        if (listener == null) {
+            return new CompressTask<>(null, callbackExecutor);
+        }
+        return new CompressTask<>(new Callback<List<File>>() {
+            @Override
+            public void onSuccess(List<File> result) {
+                listener.onSuccess(result);
+            }
+
+            @Override
+            public void onError(String e) {
+                listener.onError(e);
+            }
+        }, callbackExecutor);
+    }
+
+    /**
+     * 压缩由 {@link CompressPipeline} 执行，运行这个任务或者交给线程池不会有任何效果，也不会改变压缩结果
+     */
+    @Override
+    public void run() {
+    }
+
+    void complete(T result) {
+        set(result);
+    }
+
+    void fail(Throwable t) {
+        setException(t);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        //压缩已经完成但回调还没执行的时候，取消也要生效
+        mCallbackCancelled = true;
+        return super.cancel(mayInterruptIfRunning);
+    }
+
+    @Override
+    protected void done() {
+        if (mCallback == null || isCancelled()) {
+            return;
+        }
+        T value = null;
+        String error = null;
+        try {
+            value = get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            error = cause.getMessage() != null ? cause.getMessage() : cause.toString();
+        } catch (InterruptedException | CancellationException e) {
+            return;
+        }
+        final T result = value;
+        final String message = error;
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                //回调之前可能已经被取消了
+                if (mCallbackCancelled) {
+                    return;
+                }
+                if (message == null) {
+                    mCallback.onSuccess(result);
+                } else {
+                    mCallback.onError(message);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,63 @@
+package com.ybb.bitmapcompress;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+
+/**
+ * 编码用的可复用缓冲区
+ * <p>
+ * 搜索压缩质量的时候每次编码都写到同一个缓冲区里，大小直接通过 {@link #size()} 得到，
+ * 最终结果通过 {@link #writeTo(java.io.OutputStream)} 直接从内部数组写出，整个过程不会复制编码后的数据。
+ * 用完的缓冲区放回池子里，下一张图片接着用，几兆大小的数组不需要每次重新分配和扩容。
+ */
+final class EncodeBuffer extends ByteArrayOutputStream {
+
+    /**
+     * 池子里最多保留几个缓冲区，每个正在编码的任务同时需要两个
+     */
+    private static final int MAX_POOLED = 2 * (CompressExecutors.DEFAULT_THREAD_COUNT + 1);
+    /**
+     * 超过这个大小的缓冲区不放回池子，避免一张特别大的图片让池子一直占着很多内存
+     */
+    private static final int MAX_POOLED_CAPACITY = 8 * 1024 * 1024;
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+
+    private static final ArrayDeque<EncodeBuffer> POOL = new ArrayDeque<>();
+
+    private EncodeBuffer(int capacity) {
+        super(capacity);
+    }
+
+    /**
+     * 从池子里取一个空的缓冲区
+     */
+    static EncodeBuffer obtain() {
+        EncodeBuffer buffer;
+        synchronized (POOL) {
+            buffer = POOL.pollFirst();
+        }
+        return buffer != null ? buffer : new EncodeBuffer(INITIAL_CAPACITY);
+    }
+
+    /**
+     * 把缓冲区放回池子，之后不能再使用
+     */
+    void recycle() {
+        reset();
+        if (buf.length > MAX_POOLED_CAPACITY) {
+            return;
+        }
+        synchronized (POOL) {
+            if (POOL.size() < MAX_POOLED && !POOL.contains(this)) {
+                POOL.addFirst(this);
+            }
+        }
+    }
+
+    /**
+     * 内部数组，有效数据是前 {@link #size()} 个字节，不会复制
+     */
+    synchronized byte[] array() {
+        return buf;
+    }
+}
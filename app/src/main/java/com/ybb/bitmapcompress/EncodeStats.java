@@ -0,0 +1,134 @@
+package com.ybb.bitmapcompress;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 每种输出格式实际的压缩效果：平均每百万像素的文件大小、编码耗时和编码次数
+ * <p>
+ * 切换到WebP以后可以用这里的数据比较节省的流量和多花的CPU时间，例如：
+ * <pre>
+ * EncodeStats.Entry jpeg = Luban.get(context).getEncodeStats().get(OutputFormat.JPEG);
+ * EncodeStats.Entry webp = Luban.get(context).getEncodeStats().get(OutputFormat.WEBP);
+ * float saving = 1 - webp.getBytesPerMegapixel() / jpeg.getBytesPerMegapixel();
+ * </pre>
+ * 只统计这次运行以来的压缩，包括按目标大小搜索质量时的所有编码，不包括缓存命中和不需要压缩的图片。
+ */
+public final class EncodeStats {
+
+    private final Map<OutputFormat, Entry> mEntries = new LinkedHashMap<>();
+
+    EncodeStats() {
+    }
+
+    /**
+     * 记录一张图片的编码
+     *
+     * @param pixels  编码的像素数
+     * @param bytes   最终的文件大小（字节）
+     * @param encodes 编码的次数
+     * @param nanos   编码（包括搜索质量）的总耗时
+     */
+    synchronized void record(OutputFormat format, long pixels, long bytes, int encodes, long nanos) {
+        Entry entry = mEntries.get(format);
+        if (entry == null) {
+            entry = new Entry();
+            mEntries.put(format, entry);
+        }
+        entry.mCount++;
+        entry.mPixels += pixels;
+        entry.mBytes += bytes;
+        entry.mEncodes += encodes;
+        entry.mNanos += nanos;
+    }
+
+    /**
+     * 一种格式的统计，还没有用这种格式压缩过的时候各项都是0
+     */
+    public synchronized Entry get(OutputFormat format) {
+        Entry entry = mEntries.get(format);
+        return entry != null ? entry.copy() : new Entry();
+    }
+
+    public synchronized void reset() {
+        mEntries.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("EncodeStats{");
+        boolean first = true;
+        for (Map.Entry<OutputFormat, Entry> e : mEntries.entrySet()) {
+            if (!first) sb.append(", ");
+            first = false;
+            sb.append(e.getKey()).append('=').append(e.getValue());
+        }
+        return sb.append('}').toString();
+    }
+
+    /**
+     * 一种格式的统计，创建以后不再变化
+     */
+    public static final class Entry {
+        private int mCount;
+        private long mPixels;
+        private long mBytes;
+        private long mEncodes;
+        private long mNanos;
+
+        private Entry() {
+        }
+
+        private Entry copy() {
+            Entry entry = new Entry();
+            entry.mCount = mCount;
+            entry.mPixels = mPixels;
+            entry.mBytes = mBytes;
+            entry.mEncodes = mEncodes;
+            entry.mNanos = mNanos;
+            return entry;
+        }
+
+        /**
+         * 压缩了几张图片
+         */
+        public int getCount() {
+            return mCount;
+        }
+
+        /**
+         * 平均每百万像素的文件大小（字节），不同尺寸的图片可以直接比较
+         */
+        public float getBytesPerMegapixel() {
+            return mPixels > 0 ? mBytes * 1e6f / mPixels : 0;
+        }
+
+        /**
+         * 平均每百万像素的编码耗时（毫秒）
+         */
+        public float getMillisPerMegapixel() {
+            return mPixels > 0 ? (float) mNanos / mPixels : 0;
+        }
+
+        /**
+         * 平均每张图片编码了几次
+         */
+        public float getEncodesPerImage() {
+            return mCount > 0 ? (float) mEncodes / mCount : 0;
+        }
+
+        /**
+         * 平均每张图片的文件大小（字节）
+         */
+        public long getAverageSize() {
+            return mCount > 0 ? mBytes / mCount : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d images, %.0f B/MP, %.1f ms/MP, %.2f encodes",
+                    mCount, getBytesPerMegapixel(), getMillisPerMegapixel(), getEncodesPerImage());
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.ybb.bitmapcompress;
+
+import android.graphics.Bitmap;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 解码出来的图片的内容特征：有没有透明度、像不像截图，用来为每张图片选择输出格式
+ * <p>
+ * 截图、图标、文档这类图片颜色少、大片完全相同的颜色、边缘清晰，编码成JPEG以后文字边缘模糊，文件还经常比原来的PNG大，
+ * 无损压缩（无损WebP、PNG）既清晰又小。带透明度的图片编码成JPEG会丢掉透明度。
+ * <p>
+ * 由 {@link PixelSampler} 采样最多 {@link #SAMPLE_ROWS} 行，每行 {@link #SAMPLE_COLUMNS} 个点，
+ * 比较每个点和右边、下边的点。
+ */
+final class ImageContent {
+
+    static final int SAMPLE_ROWS = 64;
+    static final int SAMPLE_COLUMNS = 128;
+    /**
+     * 颜色数不超过这个值算颜色少，只统计到这个值为止
+     */
+    static final int FEW_COLORS = 256;
+    /**
+     * 相邻的点颜色完全相同的比例达到这个值的时候才可能是截图，照片有噪点，很少有完全相同的颜色
+     */
+    private static final float FLAT_RATIO = 0.5f;
+    /**
+     * 颜色不同的相邻的点里亮度相差大的比例达到这个值算边缘清晰，文字和界面的边缘没有过渡
+     */
+    private static final float SHARP_RATIO = 0.2f;
+    /**
+     * 相邻的点亮度相差超过这个值算是边缘
+     */
+    private static final int SHARP_EDGE = 64;
+
+    private final boolean mAlpha;
+    private final int mColorCount;
+    private final float mFlatRatio;
+    private final float mSharpRatio;
+
+    private ImageContent(boolean alpha, int colorCount, float flatRatio, float sharpRatio) {
+        mAlpha = alpha;
+        mColorCount = colorCount;
+        mFlatRatio = flatRatio;
+        mSharpRatio = sharpRatio;
+    }
+
+    static ImageContent classify(Bitmap bitmap) {
+        Counter counter = new Counter(bitmap.hasAlpha());
+        PixelSampler.sample(bitmap, SAMPLE_ROWS, SAMPLE_COLUMNS, counter);
+        return counter.toContent();
+    }
+
+    /**
+     * @param pixels width×height 个ARGB颜色，按行排列
+     */
+    static ImageContent classify(int[] pixels, int width, int height) {
+        Counter counter = new Counter(true);
+        PixelSampler.sample(pixels, width, height, SAMPLE_ROWS, SAMPLE_COLUMNS, counter);
+        return counter.toContent();
+    }
+
+    /**
+     * 统计采样点的透明度、颜色数、相同颜色和清晰边缘的比例
+     */
+    private static final class Counter implements PixelSampler.Visitor {
+        private final boolean mCheckAlpha;
+        private final Set<Integer> mColors = new HashSet<>();
+        private boolean mAlpha;
+        private int mPairs;
+        private int mFlat;
+        private int mSharp;
+
+        Counter(boolean checkAlpha) {
+            mCheckAlpha = checkAlpha;
+        }
+
+        @Override
+        public void visit(int color, int right, int below) {
+            if (mCheckAlpha && (color >>> 24) != 0xff) {
+                mAlpha = true;
+            }
+            if (mColors.size() <= FEW_COLORS) {
+                mColors.add(color);
+            }
+            compare(color, right);
+            compare(color, below);
+        }
+
+        private void compare(int color, int neighbor) {
+            mPairs++;
+            if (neighbor == color) {
+                mFlat++;
+            } else if (Math.abs(PixelSampler.luma(color) - PixelSampler.luma(neighbor)) > SHARP_EDGE) {
+                mSharp++;
+            }
+        }
+
+        ImageContent toContent() {
+            if (mPairs == 0) {
+                return new ImageContent(false, 0, 0, 0);
+            }
+            return new ImageContent(mAlpha, mColors.size(), (float) mFlat / mPairs,
+                    mFlat < mPairs ? (float) mSharp / (mPairs - mFlat) : 0);
+        }
+    }
+
+    /**
+     * 是否有透明或者半透明的点
+     */
+    boolean hasAlpha() {
+        return mAlpha;
+    }
+
+    /**
+     * 采样到的颜色数，超过 {@link #FEW_COLORS} 的时候是 FEW_COLORS + 1
+     */
+    int getColorCount() {
+        return mColorCount;
+    }
+
+    /**
+     * 像不像截图：大片完全相同的颜色，并且颜色少或者边缘清晰，适合无损压缩
+     */
+    boolean isGraphic() {
+        return mFlatRatio >= FLAT_RATIO && (mColorCount <= FEW_COLORS || mSharpRatio >= SHARP_RATIO);
+    }
+
+    @Override
+    public String toString() {
+        return "ImageContent{alpha=" + mAlpha + ", colors=" + mColorCount
+                + ", flat=" + mFlatRatio + ", sharp=" + mSharpRatio + '}';
+    }
+}
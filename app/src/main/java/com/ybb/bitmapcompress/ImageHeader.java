@@ -0,0 +1,370 @@
+package com.ybb.bitmapcompress;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 直接解析JPEG、PNG、WebP的文件头，得到宽高、格式和EXIF中的旋转角度
+ * <p>
+ * 只依赖Java标准库，不需要 {@link android.graphics.BitmapFactory} 和 {@link android.media.ExifInterface}：
+ * 从文件开头读取一段数据（一次定位读取），JPEG按标记依次跳过各个段，只读取EXIF中的方向和SOF中的宽高，
+ * 不解析其他的EXIF标签。宽高所在的位置超出已经读取的数据的时候，再接着读取后面的数据。
+ */
+final class ImageHeader {
+
+    static final String MIME_JPEG = "image/jpeg";
+    static final String MIME_PNG = "image/png";
+    static final String MIME_WEBP = "image/webp";
+
+    /**
+     * 第一次读取多少字节，一般的照片在这个范围内就能找到宽高
+     */
+    static final int INITIAL_READ = 16 * 1024;
+    /**
+     * 最多读取多少字节，EXIF里带有特别大的缩略图的时候宽高在比较靠后的位置
+     */
+    static final int MAX_READ = 1024 * 1024;
+
+    /**
+     * 解析需要更多的数据
+     */
+    private static final ImageHeader INCOMPLETE = new ImageHeader(0, 0, null, 0);
+
+    private static final int ORIENTATION_TAG = 0x0112;
+
+    final int width;
+    final int height;
+    final String mimeType;
+    /**
+     * 根据EXIF需要顺时针旋转的角度：0、90、180或270
+     */
+    final int orientation;
+
+    ImageHeader(int width, int height, String mimeType, int orientation) {
+        this.width = width;
+        this.height = height;
+        this.mimeType = mimeType;
+        this.orientation = orientation;
+    }
+
+    /**
+     * 读取文件头
+     *
+     * @return 无法识别的格式或者损坏的文件返回null
+     */
+    static ImageHeader read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return read(raf.getChannel());
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * 按位置读取文件头，不会改变channel的读取位置，也不会关闭channel
+     *
+     * @return 无法识别的格式或者损坏的文件返回null
+     */
+    static ImageHeader read(FileChannel channel) throws IOException {
+        long size = channel.size();
+        byte[] data = new byte[(int) Math.min(size, INITIAL_READ)];
+        int length = 0;
+        while (true) {
+            length += readFully(channel, data, length);
+            //没有读满说明已经到了文件末尾（文件可能在读取的过程中变短了），之后不会再有更多的数据
+            boolean complete = length < data.length || length >= size || length >= MAX_READ;
+            ImageHeader header = parse(data, length, complete);
+            if (header != INCOMPLETE) {
+                return header;
+            }
+            if (complete) {
+                return null;
+            }
+            //只读取还没有读过的部分
+            byte[] larger = new byte[(int) Math.min(Math.min(size, MAX_READ), (long) data.length * 4)];
+            System.arraycopy(data, 0, larger, 0, length);
+            data = larger;
+        }
+    }
+
+    private static int readFully(FileChannel channel, byte[] data, int offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data, offset, data.length - offset);
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, offset + total);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * 解析文件开头的length个字节
+     *
+     * @return 无法识别的格式或者损坏的文件返回null，数据不够的时候返回 {@link #INCOMPLETE}
+     */
+    static ImageHeader parse(byte[] data, int length) {
+        return parse(data, length, false);
+    }
+
+    /**
+     * 解析文件开头的length个字节
+     *
+     * @param complete 是否已经没有更多的数据了（整个文件或者最多读取的长度）。
+     *                 这时扩展格式的WebP找不到EXIF块也返回已经读到的宽高，旋转角度为0
+     * @return 无法识别的格式或者损坏的文件返回null，数据不够的时候返回 {@link #INCOMPLETE}
+     */
+    static ImageHeader parse(byte[] data, int length, boolean complete) {
+        if (length >= 3 && u8(data, 0) == 0xFF && u8(data, 1) == 0xD8 && u8(data, 2) == 0xFF) {
+            return parseJpeg(data, length);
+        }
+        if (length >= 8 && u8(data, 0) == 0x89 && data[1] == 'P' && data[2] == 'N' && data[3] == 'G'
+                && u8(data, 4) == 0x0D && u8(data, 5) == 0x0A && u8(data, 6) == 0x1A && u8(data, 7) == 0x0A) {
+            return parsePng(data, length);
+        }
+        if (length >= 12 && tag(data, 0, "RIFF") && tag(data, 8, "WEBP")) {
+            return parseWebp(data, length, complete);
+        }
+        return null;
+    }
+
+    static boolean isIncomplete(ImageHeader header) {
+        return header == INCOMPLETE;
+    }
+
+    private static ImageHeader parseJpeg(byte[] data, int length) {
+        int orientation = 0;
+        int pos = 2;
+        while (true) {
+            if (pos + 4 > length) {
+                return INCOMPLETE;
+            }
+            if (u8(data, pos) != 0xFF) {
+                return null;
+            }
+            int marker = u8(data, pos + 1);
+            if (marker == 0xFF) {
+                //标记前面可以有任意个填充的0xFF
+                pos++;
+                continue;
+            }
+            pos += 2;
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                //没有长度的标记
+                continue;
+            }
+            if (marker == 0xD9 || marker == 0xDA) {
+                //图像数据开始了还没有找到SOF
+                return null;
+            }
+            int segmentLength = u16be(data, pos);
+            if (segmentLength < 2) {
+                return null;
+            }
+            int segmentEnd = pos + segmentLength;
+            if (marker == 0xE1) {
+                if (segmentEnd > length) {
+                    return INCOMPLETE;
+                }
+                if (segmentLength >= 8 && tag(data, pos + 2, "Exif") && data[pos + 6] == 0 && data[pos + 7] == 0) {
+                    orientation = exifOrientation(data, pos + 8, segmentEnd);
+                }
+            } else if (isStartOfFrame(marker)) {
+                if (pos + 7 > length) {
+                    return INCOMPLETE;
+                }
+                int height = u16be(data, pos + 3);
+                int width = u16be(data, pos + 5);
+                return new ImageHeader(width, height, MIME_JPEG, orientation);
+            }
+            pos = segmentEnd;
+        }
+    }
+
+    private static boolean isStartOfFrame(int marker) {
+        //C4是DHT，C8是保留的JPG，CC是DAC，其他的C0~CF都是SOF
+        return marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+    }
+
+    /**
+     * 从TIFF格式的EXIF数据中读取方向，只看第一个IFD
+     *
+     * @param start TIFF头的位置
+     * @param end   EXIF数据的结束位置
+     */
+    private static int exifOrientation(byte[] data, int start, int end) {
+        if (start + 8 > end) {
+            return 0;
+        }
+        boolean little;
+        if (data[start] == 'I' && data[start + 1] == 'I') {
+            little = true;
+        } else if (data[start] == 'M' && data[start + 1] == 'M') {
+            little = false;
+        } else {
+            return 0;
+        }
+        if (u16(data, start + 2, little) != 42) {
+            return 0;
+        }
+        long ifd = u32(data, start + 4, little);
+        if (ifd < 8 || start + ifd + 2 > end) {
+            return 0;
+        }
+        int entries = start + (int) ifd;
+        int count = u16(data, entries, little);
+        for (int i = 0; i < count; i++) {
+            int entry = entries + 2 + i * 12;
+            if (entry + 12 > end) {
+                return 0;
+            }
+            if (u16(data, entry, little) == ORIENTATION_TAG) {
+                switch (u16(data, entry + 8, little)) {
+                    case 6:
+                        return 90;
+                    case 3:
+                        return 180;
+                    case 8:
+                        return 270;
+                    default:
+                        return 0;
+                }
+            }
+        }
+        return 0;
+    }
+
+    private static ImageHeader parsePng(byte[] data, int length) {
+        //文件头后面第一个块必须是IHDR
+        if (length < 24) {
+            return INCOMPLETE;
+        }
+        if (!tag(data, 12, "IHDR")) {
+            return null;
+        }
+        long width = u32(data, 16, false);
+        long height = u32(data, 20, false);
+        if (width > Integer.MAX_VALUE || height > Integer.MAX_VALUE) {
+            return null;
+        }
+        return new ImageHeader((int) width, (int) height, MIME_PNG, 0);
+    }
+
+    private static ImageHeader parseWebp(byte[] data, int length, boolean complete) {
+        int pos = 12;
+        int width = 0;
+        int height = 0;
+        boolean extended = false;
+        boolean exif = false;
+        while (true) {
+            if (pos + 8 > length) {
+                //扩展格式的EXIF块一般在最后
+                return incompleteWebp(complete, width, height);
+            }
+            long chunkSize = u32(data, pos + 4, true);
+            int body = pos + 8;
+            if (tag(data, pos, "VP8X")) {
+                if (body + 10 > length) {
+                    return INCOMPLETE;
+                }
+                extended = true;
+                exif = (u8(data, body) & 0x08) != 0;
+                width = u24le(data, body + 4) + 1;
+                height = u24le(data, body + 7) + 1;
+                if (!exif) {
+                    return new ImageHeader(width, height, MIME_WEBP, 0);
+                }
+            } else if (tag(data, pos, "VP8 ")) {
+                if (body + 10 > length) {
+                    return incompleteWebp(complete, width, height);
+                }
+                if (u8(data, body + 3) != 0x9D || u8(data, body + 4) != 0x01 || u8(data, body + 5) != 0x2A) {
+                    return null;
+                }
+                if (!extended) {
+                    return new ImageHeader(u16(data, body + 6, true) & 0x3FFF,
+                            u16(data, body + 8, true) & 0x3FFF, MIME_WEBP, 0);
+                }
+            } else if (tag(data, pos, "VP8L")) {
+                if (body + 5 > length) {
+                    return incompleteWebp(complete, width, height);
+                }
+                if (u8(data, body) != 0x2F) {
+                    return null;
+                }
+                if (!extended) {
+                    long bits = u32(data, body + 1, true);
+                    return new ImageHeader((int) (bits & 0x3FFF) + 1, (int) ((bits >> 14) & 0x3FFF) + 1,
+                            MIME_WEBP, 0);
+                }
+            } else if (tag(data, pos, "EXIF") && extended) {
+                if (body + chunkSize > length) {
+                    return incompleteWebp(complete, width, height);
+                }
+                int start = body;
+                //有的编码器会在TIFF数据前面加上JPEG里的Exif头
+                if (chunkSize >= 6 && tag(data, body, "Exif") && data[body + 4] == 0 && data[body + 5] == 0) {
+                    start += 6;
+                }
+                return new ImageHeader(width, height, MIME_WEBP,
+                        exifOrientation(data, start, body + (int) chunkSize));
+            } else if (!extended) {
+                return null;
+            }
+            //块的长度是奇数的时候后面有一个填充字节
+            long next = body + chunkSize + (chunkSize & 1);
+            if (next > Integer.MAX_VALUE) {
+                return width > 0 ? new ImageHeader(width, height, MIME_WEBP, 0) : null;
+            }
+            pos = (int) next;
+        }
+    }
+
+    /**
+     * WebP的数据不够的时候：已经读到了扩展格式的宽高并且没有更多的数据，就放弃EXIF，返回旋转角度为0的结果
+     */
+    private static ImageHeader incompleteWebp(boolean complete, int width, int height) {
+        if (complete && width > 0) {
+            return new ImageHeader(width, height, MIME_WEBP, 0);
+        }
+        return INCOMPLETE;
+    }
+
+    private static boolean tag(byte[] data, int pos, String tag) {
+        for (int i = 0; i < tag.length(); i++) {
+            if (data[pos + i] != tag.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int u8(byte[] data, int pos) {
+        return data[pos] & 0xFF;
+    }
+
+    private static int u16be(byte[] data, int pos) {
+        return (u8(data, pos) << 8) | u8(data, pos + 1);
+    }
+
+    private static int u16(byte[] data, int pos, boolean little) {
+        return little ? u8(data, pos) | (u8(data, pos + 1) << 8) : u16be(data, pos);
+    }
+
+    private static int u24le(byte[] data, int pos) {
+        return u8(data, pos) | (u8(data, pos + 1) << 8) | (u8(data, pos + 2) << 16);
+    }
+
+    private static long u32(byte[] data, int pos, boolean little) {
+        if (little) {
+            return (u16(data, pos, true) & 0xFFFFL) | ((long) u16(data, pos + 2, true) << 16);
+        }
+        return ((long) u16be(data, pos) << 16) | u16be(data, pos + 2);
+    }
+}
@@ -0,0 +1,226 @@
+package com.ybb.bitmapcompress;
+
+import android.graphics.BitmapFactory;
+import android.media.ExifInterface;
+import android.support.annotation.NonNull;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * 图片的基本信息：宽高、格式、旋转角度、文件大小和修改时间
+ * <p>
+ * 压缩一张图片的时候，计算压缩计划的各个步骤都需要这些信息，原来每一步都要重新读取一次文件头和EXIF。
+ * 这里一次读取所有的信息，并且按路径缓存最近读取过的图片，文件的大小和修改时间都没有变化的时候
+ * 再次压缩同一张图片不需要重新读取。
+ * <p>
+ * JPEG、PNG、WebP由 {@link ImageHeader} 直接解析文件头，其他格式使用 {@link BitmapFactory} 和 {@link ExifInterface}。
+ */
+public final class ImageProbe {
+
+    /**
+     * 最多缓存多少张图片的信息
+     */
+    private static final int CACHE_SIZE = 64;
+
+    private static final LruCache<String, ImageProbe> CACHE = new LruCache<>(CACHE_SIZE);
+
+    private final String mPath;
+    private final int mWidth;
+    private final int mHeight;
+    private final String mMimeType;
+    private final int mOrientation;
+    private final long mLength;
+    private final long mLastModified;
+
+    private ImageProbe(String path, int width, int height, String mimeType, int orientation,
+                       long length, long lastModified) {
+        mPath = path;
+        mWidth = width;
+        mHeight = height;
+        mMimeType = mimeType;
+        mOrientation = orientation;
+        mLength = length;
+        mLastModified = lastModified;
+    }
+
+    /**
+     * 读取图片的信息，文件没有变化的时候直接返回缓存的结果
+     */
+    @NonNull
+    public static ImageProbe probe(@NonNull File file) {
+        return probe(file, null);
+    }
+
+    /**
+     * 读取图片的信息，文件可以读到内存里的时候从 {@link SourceData} 的数据中解析，之后解码不需要再读取一次文件。
+     * <p>
+     * 不是文件的图片（Uri、输入流）没有路径，不会缓存，JPEG以外的格式无法读取EXIF，旋转角度为0
+     */
+    @NonNull
+    static ImageProbe probe(@NonNull SourceData source) {
+        File file = source.getFile();
+        if (file != null) {
+            return probe(file, source);
+        }
+        ImageHeader header = null;
+        try {
+            header = source.readHeader();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (header != null) {
+            return new ImageProbe(null, header.width, header.height, header.mimeType, header.orientation,
+                    source.length(), 0);
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        options.inSampleSize = 1;
+        try {
+            source.decode(options);
+        } catch (CompressException e) {
+            e.printStackTrace();
+        }
+        return new ImageProbe(null, options.outWidth, options.outHeight, options.outMimeType, 0,
+                source.length(), 0);
+    }
+
+    @NonNull
+    private static ImageProbe probe(@NonNull File file, SourceData source) {
+        String path = file.getAbsolutePath();
+        long length = file.length();
+        long lastModified = file.lastModified();
+        ImageProbe cached = CACHE.get(path);
+        if (cached != null && cached.mLength == length && cached.mLastModified == lastModified) {
+            return cached;
+        }
+
+        byte[] data = null;
+        ImageHeader header = null;
+        try {
+            if (source != null && source.isBuffered()) {
+                data = source.data();
+                header = ImageHeader.parse(data, data.length, true);
+                if (ImageHeader.isIncomplete(header)) {
+                    header = null;
+                }
+            } else {
+                header = ImageHeader.read(file);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        ImageProbe probe;
+        if (header != null) {
+            probe = new ImageProbe(path, header.width, header.height, header.mimeType, header.orientation,
+                    length, lastModified);
+        } else {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            options.inSampleSize = 1;
+            if (data != null) {
+                BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            } else {
+                BitmapFactory.decodeFile(path, options);
+            }
+            probe = new ImageProbe(path, options.outWidth, options.outHeight, options.outMimeType,
+                    readOrientation(path), length, lastModified);
+        }
+        if (probe.isValid()) {
+            //文件可能还没有写完，读取失败的结果不缓存
+            CACHE.put(path, probe);
+        } else {
+            CACHE.remove(path);
+        }
+        return probe;
+    }
+
+    /**
+     * 内存中的图片的信息，没有对应的文件，不会缓存
+     *
+     * @param length 按最高质量编码成JPEG的大小（字节）
+     */
+    static ImageProbe inMemory(int width, int height, long length) {
+        return new ImageProbe(null, width, height, ImageHeader.MIME_JPEG, 0, length, 0);
+    }
+
+    /**
+     * 清空缓存
+     */
+    public static void clearCache() {
+        CACHE.evictAll();
+    }
+
+    private static int readOrientation(String path) {
+        int degree = 0;
+        try {
+            ExifInterface exifInterface = new ExifInterface(path);
+            int orientation = exifInterface.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+            switch (orientation) {
+                case ExifInterface.ORIENTATION_ROTATE_90:
+                    degree = 90;
+                    break;
+                case ExifInterface.ORIENTATION_ROTATE_180:
+                    degree = 180;
+                    break;
+                case ExifInterface.ORIENTATION_ROTATE_270:
+                    degree = 270;
+                    break;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return degree;
+    }
+
+    public String getPath() {
+        return mPath;
+    }
+
+    /**
+     * 图片的宽，读取失败的时候小于等于0
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * 图片的高，读取失败的时候小于等于0
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * 图片的格式，例如 image/jpeg，无法识别的时候为null
+     */
+    public String getMimeType() {
+        return mMimeType;
+    }
+
+    /**
+     * 根据EXIF需要顺时针旋转的角度：0、90、180或270
+     */
+    public int getOrientation() {
+        return mOrientation;
+    }
+
+    /**
+     * 文件大小（字节）
+     */
+    public long length() {
+        return mLength;
+    }
+
+    public long lastModified() {
+        return mLastModified;
+    }
+
+    /**
+     * 是否成功读取到了图片的宽高
+     */
+    public boolean isValid() {
+        return mWidth > 0 && mHeight > 0;
+    }
+}
@@ -2,18 +2,21 @@ package com.ybb.bitmapcompress;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Matrix;
-import android.media.ExifInterface;
+import android.net.Uri;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import static com.ybb.bitmapcompress.Preconditions.checkNotNull;
 
@@ -25,6 +28,9 @@ import static com.ybb.bitmapcompress.Preconditions.checkNotNull;
  * 三：压缩结果不稳定，返回的图片文件大致在50K~300K之间
  * 四：压缩结果比较稳定，返回的图片文件大小大致在50~110K之间
  * 这四种模式图片都是以文件的类型传入，以文件的类型返回
+ * <p>
+ * Luban本身不保存任何压缩参数，每次 {@link #load(File)} 都会创建一个新的 {@link CompressRequest}，
+ * 所以多个压缩可以同时进行。
  */
 public class Luban {
 
@@ -53,13 +59,27 @@ public class Luban {
     private static volatile Luban INSTANCE;
 
     private final File mCacheDir;
-    private File tempFile;
-    private static Context context;
-    private String compressError = null;
-
-    private OnCompressListener compressListener;
-    private File mFile;
-    private int gear = THIRD_GEAR;
+    private final Context context;
+    private volatile CompressPipeline mPipeline;
+    private volatile SizePredictor mSizePredictor;
+    private volatile SizePredictor mWebpSizePredictor;
+    private final EncodeStats mEncodeStats = new EncodeStats();
+    /**
+     * 每个压缩级别默认的输出格式，下标是压缩级别
+     */
+    private final OutputFormat[] mOutputFormats = {
+            OutputFormat.JPEG, OutputFormat.JPEG, OutputFormat.JPEG, OutputFormat.JPEG, OutputFormat.JPEG
+    };
+    /**
+     * 没有指定输出格式的请求是否按图片的内容选择格式
+     */
+    private volatile boolean mContentAware = true;
+    private volatile ResultCache mResultCache;
+    private volatile OutputStore mOutputStore;
+    /**
+     * 正在压缩的请求（流水线中和同步压缩），按 {@link CompressJob#getKey()} 合并相同的请求
+     */
+    private final Map<String, CompressJob> mInFlight = new HashMap<>();
     /**
      * 默认设置的要显示的目标缩略图的短边
      */
@@ -71,7 +91,8 @@ public class Luban {
     private static final int mMaxWidth = 1280;
     private static final int mMaxHeight = 720;
 
-    Luban(File cacheDir) {
+    Luban(Context context, File cacheDir) {
+        this.context = context;
         mCacheDir = cacheDir;
     }
 
@@ -111,123 +132,592 @@ public class Luban {
     }
 
     public static Luban get(Context mContext) {
-        context = mContext;
-        if (INSTANCE == null) INSTANCE = new Luban(Luban.getPhotoCacheDir(context));
+        if (INSTANCE == null) {
+            synchronized (Luban.class) {
+                if (INSTANCE == null) {
+                    //只持有Application的Context，避免泄露Activity
+                    Context appContext = mContext.getApplicationContext();
+                    INSTANCE = new Luban(appContext, Luban.getPhotoCacheDir(appContext));
+                }
+            }
+        }
         return INSTANCE;
     }
 
-    public Luban launch() {
-        checkNotNull(mFile, "the image file cannot be null, please call .load() before this method!");
+    /**
+     * 创建一个新的压缩请求
+     *
+     * @param file 要压缩的图片文件
+     */
+    public CompressRequest.Builder load(File file) {
+        return new CompressRequest.Builder(this, file);
+    }
 
-        if (gear == Luban.FIRST_GEAR)
-            firstCompress(mFile);
-        else if (gear == Luban.SECOND_GEAR)
-            secondCompress(mFile.getAbsolutePath());
-        else if (gear == Luban.THIRD_GEAR)
-            thirdCompress(mFile);
-        else if (gear == Luban.FOURTH_GEAR)
-            fourthCompress(mFile);
-        return this;
+    /**
+     * 创建一个新的压缩请求，例如相册或者其他应用分享的图片，不需要先查询文件路径。
+     * 可以随机读取的Uri直接解码，不会复制
+     *
+     * @param uri 要压缩的图片的Uri，支持 content:// 和 file://
+     */
+    public CompressRequest.Builder load(Uri uri) {
+        return new CompressRequest.Builder(this, uri);
     }
 
     /**
-     * 第四种压缩方法，比较稳定，比较第二种压缩的很(最差的情况下会比第二种大13K)，但是比第二种清晰，
-     * 但是缺点是比其他几种方法都耗时。
+     * 创建一个新的压缩请求，例如网络下载的图片。
+     * 输入流只能读取一次，同一个输入流不能用于多个请求，压缩的时候读取全部内容并关闭
+     *
+     * @param in 要压缩的图片的输入流
+     */
+    public CompressRequest.Builder load(InputStream in) {
+        return new CompressRequest.Builder(this, in);
+    }
+
+    /**
+     * 创建一个新的批量压缩请求
+     *
+     * @param files 要压缩的图片文件
+     */
+    public BatchRequest.Builder load(List<File> files) {
+        return new BatchRequest.Builder(this, files);
+    }
+
+    /**
+     * 创建一个新的多尺寸压缩请求，原图只解码一次，输出几种不同的尺寸
+     *
+     * @param file 要压缩的图片文件
+     */
+    public PyramidRequest.Builder loadPyramid(File file) {
+        return new PyramidRequest.Builder(this, file);
+    }
+
+    /**
+     * 创建一个新的多尺寸压缩请求，见 {@link #load(Uri)}
      *
-     * @param mFile 要压缩的图片文件
+     * @param uri 要压缩的图片的Uri，支持 content:// 和 file://
      */
-    private void fourthCompress(File mFile) {
-        if (mFile.length() / 1024 < 40) {//小于40K就不压缩了
-            compressListener.onSuccess(mFile);
-            return;
+    public PyramidRequest.Builder loadPyramid(Uri uri) {
+        return new PyramidRequest.Builder(this, uri);
+    }
+
+    /**
+     * 创建一个新的多尺寸压缩请求，见 {@link #load(InputStream)}。
+     * 输入流只能读取一次，大的图片先写入临时文件，压缩的时候读取全部内容并关闭
+     *
+     * @param in 要压缩的图片的输入流
+     */
+    public PyramidRequest.Builder loadPyramid(InputStream in) {
+        return new PyramidRequest.Builder(this, in);
+    }
+
+    /**
+     * 在压缩流水线中批量压缩，同时压缩的数量由 {@link BatchRequest#getMemoryBudget()} 决定
+     *
+     * @return 批量压缩的句柄
+     */
+    public BatchTask launch(BatchRequest request) {
+        Executor callback = request.getCallbackExecutor() != null
+                ? request.getCallbackExecutor() : CompressExecutors.mainThread();
+        BatchTask task = new BatchTask(this, request, getPipeline(), callback);
+        task.start();
+        return task;
+    }
+
+    /**
+     * 估算压缩一张图片时解码占用的最大内存（字节）
+     *
+     * @param file 要压缩的图片文件
+     * @param gear 压缩级别
+     */
+    long estimateMemory(File file, int gear) {
+        try {
+            return plan(file, gear).estimateMemory();
+        } catch (CompressException e) {
+            return 0;
         }
-        int size[] = getImageSize(mFile.getAbsolutePath());
-        int width = size[0];
-        int height = size[1];
-        float c = 0;
-        if (width > TARGET_WIDTH && height > TARGET_HEIGHT) {
-            //取一个大的缩放比例
-            c = width / TARGET_WIDTH > height / TARGET_HEIGHT ? width / TARGET_WIDTH : height / TARGET_HEIGHT;
-            c = 1 / c;
-        } else if (width > TARGET_HEIGHT && height > TARGET_WIDTH) {
-            c = width / TARGET_HEIGHT > height / TARGET_WIDTH ? width / TARGET_HEIGHT : height / TARGET_WIDTH;
-            c = 1 / c;
-        } else {
-            c = 0.8f;
+    }
+
+    /**
+     * 在当前线程上压缩，压缩完成后在当前线程上回调
+     */
+    public void launch(CompressRequest request) {
+        OnCompressListener listener = request.getListener();
+        try {
+            File result = compress(request);
+            if (listener != null) listener.onSuccess(result);
+        } catch (CompressException e) {
+            if (listener != null) listener.onError(e.getMessage());
         }
+    }
 
-        Matrix matrix = new Matrix();
-        matrix.setScale(c, c);//缩小
-        int degree = getImageSpinAngle(mFile.getAbsolutePath());
-        matrix.postRotate(degree);
+    /**
+     * 在压缩流水线中压缩，不会阻塞当前线程。
+     * 回调默认在主线程上执行，可以通过 {@link CompressRequest.Builder#callbackOn(Executor)} 修改。
+     *
+     * @return 压缩任务的句柄，可以用来取消压缩或者等待压缩结果
+     */
+    public CompressTask<File> launchAsync(CompressRequest request) {
+        Executor callback = request.getCallbackExecutor() != null
+                ? request.getCallbackExecutor() : CompressExecutors.mainThread();
+        CompressTask<File> task = CompressTask.of(request.getListener(), callback);
+        try {
+            submit(request, task);
+        } catch (RejectedExecutionException e) {
+            task.fail(new CompressException("压缩任务太多，请稍后再试", e));
+        }
+        return task;
+    }
 
-        Bitmap mbitmap = BitmapFactory.decodeFile(mFile.getAbsolutePath());
-        if (mbitmap == null) {
-            //有时候当应用程序把某个图片文件删除后，没有将媒体库数据库中的数据删除，导致虽然能够读取到图片的数据，
-            //但是在加载的时候图片无法加载成功。
-            compressError = "您选择了损坏的图片";
-            compressListener.onError(compressError);
-            return;
+    /**
+     * 在当前线程上压缩，不回调
+     *
+     * @return 压缩后的文件，压缩到输出流并且不同时写入文件的时候为null，见 {@link CompressRequest.Builder#compressTo}
+     */
+    public File compress(CompressRequest request) throws CompressException {
+        checkNotNull(request, "request cannot be null");
+        //同样的请求正在压缩的时候等待它的结果
+        CompressJob job = new CompressJob(this, request, null);
+        CompressTask<File> task = new CompressTask<>(null, CompressExecutors.immediate());
+        if (attachOrRegister(job, task)) {
+            return await(task);
         }
-        Bitmap bitmap = Bitmap.createBitmap(mbitmap, 0, 0, mbitmap.getWidth(), mbitmap.getHeight(), matrix, true);
-        String storedPath = BitmapUtil.getStoredPictureFilePath(context);
-        //-----------------------------------------
-        if (bitmap != null) {
-            FileOutputStream fos = null;
+        return job.run();
+    }
+
+    /**
+     * 在当前线程上多尺寸压缩，不回调
+     *
+     * @return 压缩后的文件，和 {@link PyramidRequest#getOutputs()} 的顺序相同
+     */
+    public List<File> compress(PyramidRequest request) throws CompressException {
+        checkNotNull(request, "request cannot be null");
+        CompressJob job = new CompressJob(this, request, null);
+        CompressTask<List<File>> task = new CompressTask<>(null, CompressExecutors.immediate());
+        if (attachOrRegister(job, task)) {
+            return await(task);
+        }
+        job.run();
+        return job.getResults();
+    }
+
+    /**
+     * 在压缩流水线中多尺寸压缩，不会阻塞当前线程。
+     * 回调默认在主线程上执行，可以通过 {@link PyramidRequest.Builder#callbackOn(Executor)} 修改。
+     *
+     * @return 压缩任务的句柄，可以用来取消压缩或者等待压缩结果
+     */
+    public CompressTask<List<File>> launchAsync(PyramidRequest request) {
+        Executor callback = request.getCallbackExecutor() != null
+                ? request.getCallbackExecutor() : CompressExecutors.mainThread();
+        CompressTask<List<File>> task = CompressTask.of(request.getListener(), callback);
+        try {
+            CompressJob job = new CompressJob(this, request, task);
+            synchronized (mInFlight) {
+                if (!attachInFlight(job.getKey(), task)) {
+                    submit(job);
+                }
+            }
+        } catch (RejectedExecutionException e) {
+            task.fail(new CompressException("压缩任务太多，请稍后再试", e));
+        }
+        return task;
+    }
+
+    /**
+     * 等待正在流水线中压缩的同样的请求
+     */
+    private static <T> T await(CompressTask<T> task) throws CompressException {
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof CompressException) {
+                throw (CompressException) cause;
+            }
+            throw new CompressException(String.valueOf(cause), cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompressException("压缩已中断", e);
+        }
+    }
+
+    /**
+     * 在压缩流水线中压缩。同样的请求正在压缩的时候不重新压缩，压缩完成以后task收到同一个文件
+     *
+     * @throws RejectedExecutionException 等待开始压缩的请求太多了
+     */
+    void submit(CompressRequest request, CompressTask<File> task) {
+        CompressJob job = new CompressJob(this, request, task);
+        synchronized (mInFlight) {
+            if (!attachInFlight(job.getKey(), task)) {
+                submit(job);
+            }
+        }
+    }
+
+    private void submit(CompressJob job) {
+        synchronized (mInFlight) {
+            //从输入流压缩的请求没有key，不合并
+            if (job.getKey() == null) {
+                getPipeline().submit(job);
+                return;
+            }
+            mInFlight.put(job.getKey(), job);
             try {
-                tempFile = new File(storedPath);
-                fos = new FileOutputStream(tempFile);
-                fos.flush();
-                bitmap.compress(Bitmap.CompressFormat.JPEG, 100, fos);
-            } catch (Exception e) {
-                e.printStackTrace();
-            } finally {
-                if (fos != null) {
-                    try {
-                        bitmap.recycle();
-                        fos.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+                getPipeline().submit(job);
+            } catch (RejectedExecutionException e) {
+                mInFlight.remove(job.getKey());
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * 同样的请求正在压缩的时候把task加入它，否则登记在当前线程上执行的job，之后同样的请求加入这个job
+     *
+     * @return task是否加入了正在执行的压缩
+     */
+    private boolean attachOrRegister(CompressJob job, CompressTask<?> task) {
+        if (job.getKey() == null) {
+            return false;
+        }
+        synchronized (mInFlight) {
+            if (attachInFlight(job.getKey(), task)) {
+                return true;
+            }
+            mInFlight.put(job.getKey(), job);
+            return false;
+        }
+    }
+
+    private boolean attachInFlight(String key, CompressTask<?> task) {
+        if (key == null) {
+            return false;
+        }
+        synchronized (mInFlight) {
+            CompressJob running = mInFlight.get(key);
+            return running != null && running.attach(task);
+        }
+    }
+
+    /**
+     * 压缩完成、失败或者所有的请求都取消以后，之后同样的请求需要重新压缩
+     */
+    void onJobFinished(CompressJob job) {
+        synchronized (mInFlight) {
+            if (mInFlight.get(job.getKey()) == job) {
+                mInFlight.remove(job.getKey());
+            }
+        }
+    }
+
+    /**
+     * 设置异步压缩使用的流水线，默认使用 {@link CompressPipeline#CompressPipeline()}
+     */
+    public Luban setPipeline(CompressPipeline pipeline) {
+        mPipeline = pipeline;
+        return this;
+    }
+
+    CompressPipeline getPipeline() {
+        if (mPipeline == null) {
+            synchronized (this) {
+                if (mPipeline == null) {
+                    mPipeline = new CompressPipeline();
                 }
             }
         }
-        //-----------------------------------------
+        return mPipeline;
+    }
 
-        double scrale = (double) height / width;
-        if (scrale < 0.5625) {
-            secondCompress(tempFile.getAbsolutePath());
-        } else {
-            thirdCompress(tempFile);
+    /**
+     * 估算JPEG编码以后的文件大小，修正的数据在应用的多次运行之间保留
+     */
+    SizePredictor getSizePredictor() {
+        if (mSizePredictor == null) {
+            synchronized (this) {
+                if (mSizePredictor == null) {
+                    mSizePredictor = new SizePredictor(
+                            context.getSharedPreferences(SizePredictor.PREFS_NAME, Context.MODE_PRIVATE));
+                }
+            }
         }
+        return mSizePredictor;
     }
 
-    public Luban load(File file) {
-        mFile = file;
+    /**
+     * 估算这种格式编码以后的文件大小
+     */
+    SizePredictor getSizePredictor(OutputFormat format) {
+        if (format.getCompressFormat() == OutputFormat.JPEG.getCompressFormat()) {
+            return getSizePredictor();
+        }
+        if (mWebpSizePredictor == null) {
+            synchronized (this) {
+                if (mWebpSizePredictor == null) {
+                    mWebpSizePredictor = new SizePredictor(
+                            context.getSharedPreferences(SizePredictor.PREFS_NAME, Context.MODE_PRIVATE),
+                            OutputFormat.WEBP);
+                }
+            }
+        }
+        return mWebpSizePredictor;
+    }
+
+    /**
+     * 每种输出格式实际的压缩效果，见 {@link EncodeStats}
+     */
+    public EncodeStats getEncodeStats() {
+        return mEncodeStats;
+    }
+
+    /**
+     * 设置一个压缩级别默认的输出格式，默认是 {@link OutputFormat#JPEG}。
+     * 请求自己指定了格式的时候使用请求的格式，见 {@link CompressRequest.Builder#setOutputFormat(OutputFormat)}
+     *
+     * @param gear   压缩级别，{@link #FIRST_GEAR} ~ {@link #FOURTH_GEAR}
+     * @param format 输出格式
+     */
+    public Luban setOutputFormat(int gear, OutputFormat format) {
+        checkNotNull(format, "format cannot be null");
+        if (gear < FIRST_GEAR || gear > FOURTH_GEAR) {
+            throw new IllegalArgumentException("unknown gear: " + gear);
+        }
+        synchronized (mOutputFormats) {
+            mOutputFormats[gear] = format;
+        }
         return this;
     }
 
-    public Luban setCompressListener(OnCompressListener listener) {
-        compressListener = listener;
+    /**
+     * 一个压缩级别默认的输出格式，不认识的压缩级别和第三种压缩方法一样
+     */
+    public OutputFormat getOutputFormat(int gear) {
+        synchronized (mOutputFormats) {
+            return gear >= FIRST_GEAR && gear <= FOURTH_GEAR ? mOutputFormats[gear] : mOutputFormats[THIRD_GEAR];
+        }
+    }
+
+    /**
+     * 设置是否按图片的内容调整没有指定格式的请求的输出格式，默认打开：
+     * <ul>
+     * <li>截图、图标、文档这类颜色少、边缘清晰的图片使用无损WebP（Android 10以前使用PNG），
+     * 比压缩级别默认的格式大或者放不下目标大小的时候仍然使用默认的格式</li>
+     * <li>带透明度的图片不使用JPEG，改用WebP（4.3以前使用PNG）</li>
+     * </ul>
+     * 通过 {@link CompressRequest.Builder#setOutputFormat(OutputFormat)} 指定了格式的请求和多尺寸压缩不受影响。
+     * 判断的方法见 {@link ImageContent}
+     */
+    public Luban setContentAware(boolean contentAware) {
+        mContentAware = contentAware;
         return this;
     }
 
-    public Luban putGear(int gear) {
-        this.gear = gear;
+    public boolean isContentAware() {
+        return mContentAware;
+    }
+
+    /**
+     * 压缩结果的磁盘缓存，缓存目录不可用的时候为null
+     */
+    ResultCache getResultCache() {
+        if (mResultCache == null && mCacheDir != null) {
+            synchronized (this) {
+                if (mResultCache == null) {
+                    mResultCache = new ResultCache(mCacheDir, ResultCache.DEFAULT_MAX_SIZE);
+                }
+            }
+        }
+        return mResultCache;
+    }
+
+    /**
+     * 删除缓存的压缩结果，之前返回的压缩后的文件不受影响
+     */
+    public void clearResultCache() {
+        ResultCache cache = getResultCache();
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * 压缩后的文件的存放目录
+     */
+    OutputStore getOutputStore() {
+        if (mOutputStore == null) {
+            synchronized (this) {
+                if (mOutputStore == null) {
+                    mOutputStore = new OutputStore(context);
+                }
+            }
+        }
+        return mOutputStore;
+    }
+
+    /**
+     * 设置保留多少压缩后的文件，超过的时候在后台从最旧的开始删除，刚刚压缩完的文件不会删除。
+     * 默认最多保留500个文件、100M，保存7天
+     *
+     * @param maxBytes 文件总大小（字节），{@link Long#MAX_VALUE} 表示不限制
+     * @param maxCount 文件数，{@link Integer#MAX_VALUE} 表示不限制
+     * @param maxAge   保存时间（毫秒），{@link Long#MAX_VALUE} 表示不限制
+     */
+    public Luban setOutputQuota(long maxBytes, int maxCount, long maxAge) {
+        getOutputStore().setQuota(maxBytes, maxCount, maxAge);
         return this;
     }
 
+    Context getContext() {
+        return context;
+    }
+
     /**
-     * 压缩的程度稍大
+     * 根据压缩级别计算压缩计划
+     *
+     * @param file 要压缩的图片文件
+     * @param gear 压缩级别
+     */
+    CompressPlan plan(File file, int gear) throws CompressException {
+        return plan(ImageProbe.probe(file), gear);
+    }
+
+    /**
+     * 根据已经读取的图片信息计算压缩计划
+     *
+     * @param probe 图片的信息
+     * @param gear  压缩级别
+     */
+    CompressPlan plan(ImageProbe probe, int gear) throws CompressException {
+        CompressPlan plan;
+        if (gear == Luban.FIRST_GEAR)
+            plan = firstCompress(probe);
+        else if (gear == Luban.SECOND_GEAR)
+            plan = secondCompress(probe);
+        else if (gear == Luban.FOURTH_GEAR)
+            plan = fourthCompress(probe);
+        else
+            plan = thirdCompress(probe);
+        plan.sourceMimeType = probe.getMimeType();
+        plan.sourceBytes = SourceData.bufferedLength(probe.length());
+        //特别大的图片按原来的计划解码会超出内存
+        plan.fitMemory(MemoryBudget.perJob());
+        return plan;
+    }
+
+    /**
+     * 第四种压缩方法，比较稳定，比较第二种压缩的很(最差的情况下会比第二种大13K)，但是比第二种清晰，
+     * 但是缺点是比其他几种方法都耗时。
+     * 先按比例缩小并旋转，再根据宽高比用第二种或第三种方法在内存中继续压缩缩小后的图片，见 {@link #planInMemory}。
+     *
+     * @param probe 图片的信息
+     */
+    private CompressPlan fourthCompress(ImageProbe probe) throws CompressException {
+        if (probe.length() / 1024 < 40) {//小于40K就不压缩了
+            return CompressPlan.passthrough();
+        }
+        checkImageSize(probe);
+        int width = probe.getWidth();
+        int height = probe.getHeight();
+
+        CompressPlan plan = new CompressPlan();
+        plan.sourcePath = probe.getPath();
+        plan.sourceWidth = width;
+        plan.sourceHeight = height;
+        plan.scale = fourthScale(width, height);//缩小
+        //按不小于缩小后尺寸的最大采样率解码，不再按原图的尺寸解码
+        while (plan.inSampleSize * 2 * plan.scale <= 1) {
+            plan.inSampleSize *= 2;
+        }
+        plan.rotation = probe.getOrientation();
+        plan.quality = 100;
+
+        double scrale = (double) height / width;
+        plan.nextGear = scrale < 0.5625 ? SECOND_GEAR : THIRD_GEAR;
+        return plan;
+    }
+
+    /**
+     * 第四种压缩方法缩小并旋转以后，按第二种或第三种方法计算内存中的图片的压缩计划
+     * <p>
+     * 原来是把缩小后的图片以最高质量写入中间文件，再读取中间文件重新计算。这里直接使用缩小后的宽高，
+     * 中间文件的大小用估算的最高质量的大小代替，省去一次编码、写入、读取和解码。
+     *
+     * @param width  缩小并旋转以后的宽
+     * @param height 缩小并旋转以后的高
+     * @param length 按最高质量编码的估算大小（字节）
+     * @param gear   {@link #SECOND_GEAR} 或 {@link #THIRD_GEAR}
      */
-    private void secondCompress(@NonNull String filePath) {
-        String thumb = BitmapUtil.getStoredPictureFilePath(context);
+    CompressPlan planInMemory(int width, int height, long length, int gear) throws CompressException {
+        ImageProbe probe = ImageProbe.inMemory(width, height, length);
+        if (gear == SECOND_GEAR)
+            return secondCompress(probe);
+        else
+            return thirdCompress(probe);
+    }
+
+    /**
+     * 计算多尺寸压缩的解码计划：按采样率解码，缩放到最大的输出尺寸并旋转，更小的尺寸在编码之前从它缩小得到
+     *
+     * @param probe   图片的信息
+     * @param outputs 要输出的尺寸
+     */
+    CompressPlan planPyramid(ImageProbe probe, List<OutputSpec> outputs) throws CompressException {
+        checkImageSize(probe);
+        int rotation = probe.getOrientation();
+        boolean swap = rotation % 180 != 0;
+        //输出的尺寸按旋转以后的宽高计算
+        int width = swap ? probe.getHeight() : probe.getWidth();
+        int height = swap ? probe.getWidth() : probe.getHeight();
+        int[] top = {1, 1};
+        for (OutputSpec output : outputs) {
+            int[] size = output.fit(width, height);
+            if ((long) size[0] * size[1] > (long) top[0] * top[1]) {
+                top = size;
+            }
+        }
 
+        CompressPlan plan = new CompressPlan();
+        plan.sourcePath = probe.getPath();
+        plan.sourceMimeType = probe.getMimeType();
+        plan.sourceWidth = probe.getWidth();
+        plan.sourceHeight = probe.getHeight();
+        plan.rotation = rotation;
+        plan.scaleWidth = swap ? top[1] : top[0];
+        plan.scaleHeight = swap ? top[0] : top[1];
+        plan.inSampleSize = findBestSampleSize(plan.sourceWidth, plan.sourceHeight, plan.scaleWidth, plan.scaleHeight);
+        plan.sourceBytes = SourceData.bufferedLength(probe.length());
+        plan.fitMemory(MemoryBudget.perJob());
+        return plan;
+    }
+
+    /**
+     * 第四种压缩方法的缩放比例
+     */
+    private float fourthScale(int width, int height) {
+        float c;
+        if (width > TARGET_WIDTH && height > TARGET_HEIGHT) {
+            //取一个大的缩放比例
+            c = width / TARGET_WIDTH > height / TARGET_HEIGHT ? width / TARGET_WIDTH : height / TARGET_HEIGHT;
+            c = 1 / c;
+        } else if (width > TARGET_HEIGHT && height > TARGET_WIDTH) {
+            c = width / TARGET_HEIGHT > height / TARGET_WIDTH ? width / TARGET_HEIGHT : height / TARGET_WIDTH;
+            c = 1 / c;
+        } else {
+            c = 0.8f;
+        }
+        return c;
+    }
+
+    /**
+     * 压缩的程度稍大
+     */
+    private CompressPlan secondCompress(@NonNull ImageProbe probe) throws CompressException {
         double scale;
 
-        int angle = getImageSpinAngle(filePath);
-        int width = getImageSize(filePath)[0];
-        int height = getImageSize(filePath)[1];
+        checkImageSize(probe);
+        int width = probe.getWidth();
+        int height = probe.getHeight();
         int thumbW = width % 2 == 1 ? width + 1 : width;
         int thumbH = height % 2 == 1 ? height + 1 : height;
 
@@ -271,61 +761,46 @@ public class Luban {
             scale = scale < 100 ? 100 : scale;
         }
 
-        compress(filePath, thumb, thumbW, thumbH, angle, (long) scale);
-
-
+        return compress(probe, thumbW, thumbH, (long) scale);
     }
 
     /**
      * 压缩的程度最轻
      * 如果原图的大小小于600K那么就不进行压缩直接返回
      *
-     * @param file
+     * @param probe 图片的信息
      */
-    private void firstCompress(@NonNull File file) {
+    private CompressPlan firstCompress(ImageProbe probe) throws CompressException {
 
         //如果图片是特别长或者特别宽的图片,则进行特殊压缩处理。(进行质量压缩)
-        BitmapFactory.Options opts = new BitmapFactory.Options();
-        opts.inJustDecodeBounds = true;
-        BitmapFactory.decodeFile(file.getAbsolutePath(),opts);
-        int imgW = opts.outWidth;
-        int imgH = opts.outHeight;
+        checkImageSize(probe);
+        int imgW = probe.getWidth();
+        int imgH = probe.getHeight();
         float bi = (float) (imgW*1.0/imgH);
         if (bi < 0.1 || bi > 10){
             //压缩尺寸的方法不可行，因为会越压占用空间越大。
-            Bitmap src = BitmapFactory.decodeFile(file.getAbsolutePath());
-            String thumbFilePath = BitmapUtil.getStoredPictureFilePath(context);
-            File targetFile = new File(thumbFilePath);
+            CompressPlan plan = new CompressPlan();
+            plan.sourcePath = probe.getPath();
+            plan.sourceWidth = imgW;
+            plan.sourceHeight = imgH;
             int quality = 10;
-            if (file.length()/1024 > 1024){//大于1M
+            if (probe.length()/1024 > 1024){//大于1M
                 quality = 9;
-            }else if (file.length()/1024 > 600){//大于600K
+            }else if (probe.length()/1024 > 600){//大于600K
                 quality = 70;
-            }else if (file.length()/1024 > 300){//大于300K
+            }else if (probe.length()/1024 > 300){//大于300K
                 quality = 90;
             }else {
                 quality = 100;
             }
-            try {
-                src.compress(Bitmap.CompressFormat.JPEG,quality,new FileOutputStream(targetFile));
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-            }
-            compressListener.onSuccess(targetFile);
-            return;
+            plan.quality = quality;
+            return plan;
         }else {
             //如果原图的大小小于600K那么就不进行压缩直接返回
-            if (file.length() / 1024 < 600) {
-                compressListener.onSuccess(file);
-                return;
-            }
-            String thumbFilePath = BitmapUtil.getStoredPictureFilePath(context);
-            try {
-                Bitmap bitmap = getFixSizeBitmap(file.getAbsolutePath());
-                saveImage(thumbFilePath, bitmap);
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
+            if (probe.length() / 1024 < 600) {
+                return CompressPlan.passthrough();
             }
+            return getFixSizePlan(probe);
         }
 
     }
@@ -333,20 +808,18 @@ public class Luban {
     /**
      * 压缩的程度最厉害
      *
-     * @param file
+     * @param probe 图片的信息
      */
-    private void thirdCompress(@NonNull File file) {
+    private CompressPlan thirdCompress(@NonNull ImageProbe probe) throws CompressException {
         int minSize = 60;
         int longSide = 720;
         int shortSide = 1280;
 
-        String filePath = file.getAbsolutePath();
-        String thumbFilePath = BitmapUtil.getStoredPictureFilePath(context);
         long size = 0;
-        long maxSize = file.length() / 5;
+        long maxSize = probe.length() / 5;
 
-        int angle = getImageSpinAngle(filePath);
-        int[] imgSize = getImageSize(filePath);
+        checkImageSize(probe);
+        int[] imgSize = {probe.getWidth(), probe.getHeight()};
         int width = 0, height = 0;
         if (imgSize[0] <= imgSize[1]) {
             double scale = (double) imgSize[0] / (double) imgSize[1];
@@ -372,34 +845,35 @@ public class Luban {
             }
         }
 
-        compress(filePath, thumbFilePath, width, height, angle, size);
+        return compress(probe, width, height, size);
     }
 
-    private Bitmap getFixSizeBitmap(String path)
-            throws FileNotFoundException {
-        BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
-        Bitmap bitmap = null;
+    /**
+     * 计算第一种压缩方法的压缩计划：按最大宽高缩放并旋转到正确的角度，以最高质量保存
+     */
+    private CompressPlan getFixSizePlan(ImageProbe probe) {
+        int outWidth = probe.getWidth();
+        int outHeight = probe.getHeight();
+        CompressPlan plan = new CompressPlan();
+        plan.sourcePath = probe.getPath();
+        plan.sourceWidth = outWidth;
+        plan.sourceHeight = outHeight;
+        plan.quality = 100;
         if (mMaxWidth == 0 && mMaxHeight == 0) {
-            decodeOptions.inPreferredConfig = Bitmap.Config.RGB_565;
-            bitmap = BitmapFactory.decodeStream(new FileInputStream(new File(path)), null, decodeOptions);
+            plan.config = Bitmap.Config.RGB_565;
         } else {
-            int degress = getImageSpinAngle(path);
-            decodeOptions.inJustDecodeBounds = true;
-            if (new File(path).exists()){
-                Log.e("cunzai","存在");
-            }
-            BitmapFactory.decodeFile(path, decodeOptions);
+            int degress = probe.getOrientation();
 
             int actualWidth = 0;
             int actualHeight = 0;
 
             if (degress == 0 || degress % 180 == 0) {
                 //如果当前图片无旋转角度或则旋转角度为180 时 此时图片的高宽是正常的 其他情况比如旋转角度为90或270时，高宽是反着的
-                actualWidth = decodeOptions.outWidth;
-                actualHeight = decodeOptions.outHeight;
+                actualWidth = outWidth;
+                actualHeight = outHeight;
             } else {
-                actualWidth = decodeOptions.outHeight;
-                actualHeight = decodeOptions.outWidth;
+                actualWidth = outHeight;
+                actualHeight = outWidth;
             }
 
             int desiredWidth = getResizedDimension(mMaxWidth, mMaxHeight,
@@ -408,41 +882,21 @@ public class Luban {
             int desiredHeight = getResizedDimension(mMaxHeight, mMaxWidth,
                     actualHeight, actualWidth);
 
-            decodeOptions.inJustDecodeBounds = false;
-            decodeOptions.inSampleSize = findBestSampleSize(actualWidth,
+            plan.inSampleSize = findBestSampleSize(actualWidth,
                     actualHeight, desiredWidth, desiredHeight);
 
-
-            Bitmap tempBitmap = BitmapFactory.decodeFile(path, decodeOptions);
-
             if (degress == 0 || degress % 180 == 0) {
-                //如果当前图片无旋转角度或则旋转角度为180 时 此时图片的高宽是正常的 其他情况比如旋转角度为90或270时，高宽是反着的
-                if (tempBitmap != null
-                        && (tempBitmap.getHeight() > desiredHeight || tempBitmap
-                        .getWidth() > desiredWidth)) {
-
-                    bitmap = Bitmap.createScaledBitmap(tempBitmap, desiredWidth,
-                            desiredHeight, true);
-                    tempBitmap.recycle();
-                } else {
-                    bitmap = tempBitmap;
-                }
+                plan.scaleWidth = desiredWidth;
+                plan.scaleHeight = desiredHeight;
             } else {
-                if (tempBitmap != null
-                        && (tempBitmap.getHeight() > desiredWidth || tempBitmap
-                        .getWidth() > desiredHeight)) {
-
-                    bitmap = Bitmap.createScaledBitmap(tempBitmap, desiredHeight,
-                            desiredWidth, true);
-                    tempBitmap.recycle();
-                } else {
-                    bitmap = tempBitmap;
-                }
+                //旋转之前的图片高宽是反着的
+                plan.scaleWidth = desiredHeight;
+                plan.scaleHeight = desiredWidth;
             }
             //确保图片的旋转角度是正确的
-            bitmap = rotatingImage(degress, bitmap);
+            plan.rotation = degress;
         }
-        return bitmap;
+        return plan;
     }
 
     private int getResizedDimension(int maxPrimary, int maxSecondary,
@@ -486,54 +940,39 @@ public class Luban {
      * @param imagePath the path of image
      */
     public int[] getImageSize(String imagePath) {
-        int[] res = new int[2];
-
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-        options.inSampleSize = 1;
-        BitmapFactory.decodeFile(imagePath, options);
-
-        res[0] = options.outWidth;
-        res[1] = options.outHeight;
-
-        return res;
+        ImageProbe probe = ImageProbe.probe(new File(imagePath));
+        return new int[]{probe.getWidth(), probe.getHeight()};
     }
 
     /**
      * 指定参数压缩图片
-     * create the thumbnail with the true rotate angle
+     * create the plan of the thumbnail with the true rotate angle
      *
-     * @param largeImagePath the big image path
-     * @param thumbFilePath  the thumbnail path
-     * @param width          width of thumbnail
-     * @param height         height of thumbnail
-     * @param angle          rotation angle of thumbnail
-     * @param size           the file size of image
+     * @param probe  the big image
+     * @param width  width of thumbnail
+     * @param height height of thumbnail
+     * @param size   the file size of image
      */
-    private void compress(String largeImagePath, String thumbFilePath, int width, int height, int angle, long size) {
-        Bitmap thbBitmap = compress(largeImagePath, width, height);
-
-        thbBitmap = rotatingImage(angle, thbBitmap);
-
-        saveImage(thumbFilePath, thbBitmap, size);
-
+    private CompressPlan compress(ImageProbe probe, int width, int height, long size) {
+        CompressPlan plan = new CompressPlan();
+        plan.sourcePath = probe.getPath();
+        plan.sourceWidth = probe.getWidth();
+        plan.sourceHeight = probe.getHeight();
+        plan.inSampleSize = computeSampleSize(probe.getWidth(), probe.getHeight(), width, height);
+        plan.rotation = probe.getOrientation();
+        plan.targetSize = size;
+        return plan;
     }
 
     /**
-     * obtain the thumbnail that specify the size
+     * obtain the sample size of the thumbnail that specify the size
      *
-     * @param imagePath the target image path
-     * @param width     the width of thumbnail
-     * @param height    the height of thumbnail
-     * @return {@link Bitmap}
-     */
-    private Bitmap compress(String imagePath, int width, int height) {
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-        BitmapFactory.decodeFile(imagePath, options);
-
-        int outH = options.outHeight;
-        int outW = options.outWidth;
+     * @param outW   the width of the target image
+     * @param outH   the height of the target image
+     * @param width  the width of thumbnail
+     * @param height the height of thumbnail
+     */
+    private int computeSampleSize(int outW, int outH, int width, int height) {
         int inSampleSize = 1;
 
         if (outH > height || outW > width) {
@@ -545,146 +984,56 @@ public class Luban {
             }
         }
 
-        options.inSampleSize = inSampleSize;
-
-        options.inJustDecodeBounds = false;
-
-        int heightRatio = (int) Math.ceil(options.outHeight / (float) height);
-        int widthRatio = (int) Math.ceil(options.outWidth / (float) width);
+        int heightRatio = (int) Math.ceil(outH / (float) height);
+        int widthRatio = (int) Math.ceil(outW / (float) width);
 
         if (heightRatio > 1 || widthRatio > 1) {
             if (heightRatio > widthRatio) {
-                options.inSampleSize = heightRatio;
+                inSampleSize = heightRatio;
             } else {
-                options.inSampleSize = widthRatio;
+                inSampleSize = widthRatio;
             }
         }
-        options.inJustDecodeBounds = false;
-
-        return BitmapFactory.decodeFile(imagePath, options);
+        return inSampleSize;
     }
 
-    /**
-     * obtain the image rotation angle
-     *
-     * @param path path of target image
-     */
-    private int getImageSpinAngle(String path) {
-        int degree = 0;
-        try {
-            ExifInterface exifInterface = new ExifInterface(path);
-            int orientation = exifInterface.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
-            switch (orientation) {
-                case ExifInterface.ORIENTATION_ROTATE_90:
-                    degree = 90;
-                    break;
-                case ExifInterface.ORIENTATION_ROTATE_180:
-                    degree = 180;
-                    break;
-                case ExifInterface.ORIENTATION_ROTATE_270:
-                    degree = 270;
-                    break;
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
+    private void checkImageSize(ImageProbe probe) throws CompressException {
+        if (!probe.isValid()) {
+            //有时候当应用程序把某个图片文件删除后，没有将媒体库数据库中的数据删除，导致虽然能够读取到图片的数据，
+            //但是在加载的时候图片无法加载成功。
+            throw new CompressException("您选择了损坏的图片");
         }
-        return degree;
-    }
-
-    /**
-     * 旋转图片
-     * rotate the image with specified angle
-     *
-     * @param angle  the angle will be rotating 旋转的角度
-     * @param bitmap target image               目标图片
-     */
-    private Bitmap rotatingImage(int angle, Bitmap bitmap) {
-        //rotate image
-        Matrix matrix = new Matrix();
-        matrix.postRotate(angle);
-
-        //create a new image
-        return Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
     }
 
     /**
-     * 保存图片到指定路径
-     * Save image with specified size
+     * 缓存文件
      *
-     * @param filePath the image file save path 储存路径
-     * @param bitmap   the image what be save   目标图片
-     * @param size     the file size of image   期望大小
+     * @param thumbFilePath 压缩完输出的图片文件路径
+     * @param bitmap        要存储的图片
+     * @return 压缩后的文件路径，保存失败的时候返回null
      */
-    private void saveImage(String filePath, Bitmap bitmap, long size) {
-        checkNotNull(bitmap, TAG + "bitmap cannot be null");
-
-        File result = new File(filePath.substring(0, filePath.lastIndexOf("/")));
-
-        if (!result.exists() && !result.mkdirs()) return;
-
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        int options = 100;
-        bitmap.compress(Bitmap.CompressFormat.JPEG, options, stream);
-
-        while (stream.toByteArray().length / 1024 > size) {
-            stream.reset();
-            options -= 6;
-            if (options < 0) {
-                break;
-            }
-            bitmap.compress(Bitmap.CompressFormat.JPEG, options, stream);
-        }
-        try {
-            FileOutputStream fos = new FileOutputStream(filePath);
-            fos.write(stream.toByteArray());
-            fos.flush();
-            fos.close();
-            bitmap.recycle();
-
-            if (compressListener != null) {
-                compressListener.onSuccess(new File(filePath));
-            } else {
-                compressError = "compressListener为空";
-                compressListener.onError(compressError);
-            }
-        } catch (Exception e) {
-            if (compressListener != null) compressListener.onError(e.getMessage());
-        } finally {
-            //删除四级压缩过程中产生的多余文件。
-            if (tempFile != null && tempFile.exists()) {
-                tempFile.delete();
-            }
-        }
+    public String saveImage(String thumbFilePath, Bitmap bitmap) {
+        return saveImage(thumbFilePath, bitmap, OutputFormat.JPEG);
     }
 
     /**
-     * 缓存文件
+     * 按指定的格式以最高质量缓存文件，见 {@link #saveImage(String, Bitmap)}
      *
-     * @param thumbFilePath 压缩完输出的图片文件路径
-     * @param bitmap        要存储的图片
+     * @param format 保存的格式
      */
-    public String saveImage(String thumbFilePath, Bitmap bitmap) {
+    public String saveImage(String thumbFilePath, Bitmap bitmap, OutputFormat format) {
         if (bitmap != null) {
             FileOutputStream fos = null;
             try {
                 File file = new File(thumbFilePath);
                 fos = new FileOutputStream(file);
-                bitmap.compress(Bitmap.CompressFormat.JPEG, 100, fos);
+                bitmap.compress(format.getCompressFormat(), format.maxQuality(), fos);
                 bitmap.recycle();
-                if (compressListener != null) {
-                    compressListener.onSuccess(new File(thumbFilePath));
-                }
 
                 return file.getAbsolutePath();
             } catch (FileNotFoundException e) {
                 e.printStackTrace();
-                if (compressListener != null) {
-                    compressListener.onError(e.getMessage());
-                }
             } finally {
-                if (tempFile != null && tempFile.exists()) {
-                    tempFile.delete();
-                }
                 if (fos != null) {
                     try {
                         fos.close();
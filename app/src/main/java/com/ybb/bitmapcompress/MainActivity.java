@@ -15,6 +15,7 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 import java.io.File;
+import java.util.List;
 
 public class MainActivity extends AppCompatActivity {
 
@@ -71,49 +72,36 @@ public class MainActivity extends AppCompatActivity {
         if (resultCode == RESULT_OK) {
             Uri uri = data.getData();
             Log.e("uri", uri.toString());
-            String imagePath = BitmapUtil.getAbsolutePathFromUri(this,uri);
-            Log.e("图片路径：",imagePath);
-            File file = new File(imagePath);
-            Log.e("CreatorYan","文件存在"+file.exists()+"文件可读"+file.canRead()+"文件可写"+file.canWrite());
-            Luban.get(this).load(file).putGear(Luban.FIRST_GEAR).setCompressListener(new OnCompressListener() {
-                @Override
-                public void onSuccess(File file) {
-                    Log.e("CreatorYan", "压缩后的文件路径："+file.getAbsolutePath());
-                    Bitmap bitmap = BitmapFactory.decodeFile(file.getAbsolutePath());
-                    int w = bitmap.getWidth();
-                    int h = bitmap.getHeight();
-                    String info = "作为原图->大小:"+file.length() / 1024 + "K; 宽:"+w+"; 高:"+h;
-                    Log.e("CreatorYan", info);
-                    tv1.setText(info);
-                    iv1.setImageBitmap(bitmap);
-                }
+            //直接读取Uri，不需要先查询文件路径，云端的图片也可以压缩
+            //原图只解码一次，同时输出作为原图和作为缩略图的两种尺寸
+            Luban.get(this).loadPyramid(uri)
+                    .addOutput(new OutputSpec.Builder().maxSize(1280, 720).build())
+                    .addOutput(new OutputSpec.Builder().maxSize(889, 500).targetSize(100).build())
+                    .setCompressListener(new OnPyramidCompressListener() {
+                        @Override
+                        public void onSuccess(List<File> files) {
+                            show(files.get(0), "作为原图", tv1, iv1);
+                            show(files.get(1), "作为缩略图", tv2, iv2);
+                        }
 
-                @Override
-                public void onError(String e) {
-                    Log.e("压缩出错：",e);
-                }
-            }).launch();
-
-            Luban.get(this).load(file).putGear(Luban.FOURTH_GEAR).setCompressListener(new OnCompressListener() {
-                @Override
-                public void onSuccess(File file) {
-                    Log.e("CreatorYan", "压缩后的文件路径："+file.getAbsolutePath());
-                    Bitmap bitmap = BitmapFactory.decodeFile(file.getAbsolutePath());
-                    int w = bitmap.getWidth();
-                    int h = bitmap.getHeight();
-                    String info = "作为缩略图->大小:"+file.length() / 1024 + "K; 宽:"+w+"; 高:"+h;
-                    Log.e("CreatorYan：", info);
-                    tv2.setText(info);
-                    iv2.setImageBitmap(bitmap);
-                }
-
-                @Override
-                public void onError(String e) {
-                    Log.e("压缩出错：",e);
-                }
-            }).launch();
+                        @Override
+                        public void onError(String e) {
+                            Log.e("压缩出错：",e);
+                        }
+                    }).launchAsync();
         }
         super.onActivityResult(requestCode, resultCode, data);
     }
 
+    private void show(File file, String label, TextView tv, ImageView iv) {
+        Log.e("CreatorYan", "压缩后的文件路径："+file.getAbsolutePath());
+        Bitmap bitmap = BitmapFactory.decodeFile(file.getAbsolutePath());
+        int w = bitmap.getWidth();
+        int h = bitmap.getHeight();
+        String info = label+"->大小:"+file.length() / 1024 + "K; 宽:"+w+"; 高:"+h;
+        Log.e("CreatorYan", info);
+        tv.setText(info);
+        iv.setImageBitmap(bitmap);
+    }
+
 }
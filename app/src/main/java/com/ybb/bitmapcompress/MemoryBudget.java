@@ -0,0 +1,73 @@
+package com.ybb.bitmapcompress;
+
+/**
+ * 解码内存的预算
+ * <p>
+ * 每个压缩任务开始之前按照预计的解码内存申请额度，结束以后归还。
+ * 单个任务的预计内存超过总预算的时候按总预算计算，并且只有在没有其他任务的时候才能开始，保证大图也能被压缩。
+ */
+final class MemoryBudget {
+
+    private final long mCapacity;
+    private long mUsed;
+
+    MemoryBudget(long capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        mCapacity = capacity;
+    }
+
+    /**
+     * 默认的预算：最大可用堆内存的四分之一
+     */
+    static long defaultCapacity() {
+        return Runtime.getRuntime().maxMemory() / 4;
+    }
+
+    /**
+     * 一个压缩任务解码、缩放和旋转最多使用的内存，超过的时候 {@link CompressPlan#fitMemory(long)} 会提高采样率。
+     * 和批量压缩的默认预算相同，默认设置下任何一张图片都能在预算以内压缩
+     */
+    static long perJob() {
+        return defaultCapacity();
+    }
+
+    /**
+     * 解码以后占用的内存不超过budget的最小采样率（2的幂）
+     *
+     * @param bytesPerPixel 每个像素占用的字节数
+     */
+    static int sampleSizeFor(int width, int height, int bytesPerPixel, long budget) {
+        int sampleSize = 1;
+        while ((long) ((width + sampleSize - 1) / sampleSize) * ((height + sampleSize - 1) / sampleSize)
+                * bytesPerPixel > budget && (width > sampleSize || height > sampleSize)) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    long capacity() {
+        return mCapacity;
+    }
+
+    /**
+     * @return 实际占用的额度，不够的时候返回-1
+     */
+    synchronized long tryAcquire(long bytes) {
+        long granted = Math.max(0, Math.min(bytes, mCapacity));
+        if (mUsed > 0 && mUsed + granted > mCapacity) {
+            return -1;
+        }
+        mUsed += granted;
+        return granted;
+    }
+
+    synchronized void release(long granted) {
+        mUsed = Math.max(0, mUsed - granted);
+    }
+
+    synchronized long used() {
+        return mUsed;
+    }
+}
@@ -0,0 +1,29 @@
+package com.ybb.bitmapcompress;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * 批量压缩的回调，每张图片压缩完成后都会回调一次，全部完成后再回调一次 {@link #onComplete(List)}
+ */
+public interface OnBatchCompressListener {
+
+    /**
+     * @param index  图片在批量请求中的位置
+     * @param source 原图
+     * @param file   压缩后的文件
+     */
+    void onSuccess(int index, File source, File file);
+
+    /**
+     * @param index  图片在批量请求中的位置
+     * @param source 原图
+     * @param e      错误信息
+     */
+    void onError(int index, File source, String e);
+
+    /**
+     * @param files 按原来的顺序排列的压缩结果，压缩失败的位置为null
+     */
+    void onComplete(List<File> files);
+}
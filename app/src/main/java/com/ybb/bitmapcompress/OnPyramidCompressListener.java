@@ -0,0 +1,17 @@
+package com.ybb.bitmapcompress;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * 多尺寸压缩的回调
+ */
+public interface OnPyramidCompressListener {
+
+    /**
+     * @param files 压缩后的文件，和 {@link PyramidRequest#getOutputs()} 的顺序相同
+     */
+    void onSuccess(List<File> files);
+
+    void onError(String e);
+}
@@ -0,0 +1,169 @@
+package com.ybb.bitmapcompress;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+/**
+ * 压缩后的文件格式
+ * <p>
+ * 同样的画质下有损WebP比JPEG小25%~35%，适合上传和发送；无损WebP适合截图、图标这类颜色少、边缘清晰的图片，
+ * 按目标大小压缩的时候无损放不下会改用有损WebP。PNG是Android 10以前不支持无损WebP时的无损格式。
+ * <p>
+ * 可以通过 {@link Luban#setOutputFormat(int, OutputFormat)} 为每个压缩级别设置默认的格式，
+ * 也可以通过 {@link CompressRequest.Builder#setOutputFormat(OutputFormat)} 为单个请求指定。
+ * 没有指定的时候还会按图片的内容调整，见 {@link Luban#setContentAware(boolean)}。
+ * 每种格式实际的压缩效果见 {@link EncodeStats}。
+ */
+public final class OutputFormat {
+
+    public static final OutputFormat JPEG = new OutputFormat("jpeg", Bitmap.CompressFormat.JPEG,
+            ImageHeader.MIME_JPEG, ".jpg", false);
+    public static final OutputFormat WEBP = new OutputFormat("webp", Bitmap.CompressFormat.WEBP,
+            ImageHeader.MIME_WEBP, ".webp", false);
+    /**
+     * 无损WebP，Android 10以前质量为100的WebP也是有损的，不支持无损编码，改用PNG
+     */
+    public static final OutputFormat WEBP_LOSSLESS = new OutputFormat("webp-lossless", losslessWebp(),
+            ImageHeader.MIME_WEBP, ".webp", true);
+    /**
+     * PNG，无损，文件通常比无损WebP大
+     */
+    public static final OutputFormat PNG = new OutputFormat("png", Bitmap.CompressFormat.PNG,
+            ImageHeader.MIME_PNG, ".png", true);
+
+    /**
+     * WebP的宽高都不能超过这个值
+     */
+    private static final int WEBP_MAX_SIZE = 16383;
+    /**
+     * Android 10（Q）开始质量为100的WebP按无损压缩编码，Android 11（R）开始有单独的WEBP_LOSSLESS，
+     * compileSdkVersion里还没有这两个版本号
+     */
+    private static final int SDK_Q = 29;
+    private static final int SDK_R = 30;
+
+    private final String mName;
+    private final Bitmap.CompressFormat mCompressFormat;
+    private final String mMimeType;
+    private final String mExtension;
+    private final boolean mLossless;
+
+    private OutputFormat(String name, Bitmap.CompressFormat compressFormat, String mimeType, String extension,
+                         boolean lossless) {
+        mName = name;
+        mCompressFormat = compressFormat;
+        mMimeType = mimeType;
+        mExtension = extension;
+        mLossless = lossless;
+    }
+
+    /**
+     * 编码无损WebP用的格式：Android 11开始用WEBP_LOSSLESS，之前用质量为100的WEBP
+     */
+    private static Bitmap.CompressFormat losslessWebp() {
+        if (Build.VERSION.SDK_INT >= SDK_R) {
+            try {
+                return Bitmap.CompressFormat.valueOf("WEBP_LOSSLESS");
+            } catch (IllegalArgumentException e) {
+                //没有这个常量的时候按Android 10的方法编码
+            }
+        }
+        return Bitmap.CompressFormat.WEBP;
+    }
+
+    public Bitmap.CompressFormat getCompressFormat() {
+        return mCompressFormat;
+    }
+
+    /**
+     * 例如 image/jpeg
+     */
+    public String getMimeType() {
+        return mMimeType;
+    }
+
+    /**
+     * 文件的扩展名，例如 .jpg
+     */
+    public String getExtension() {
+        return mExtension;
+    }
+
+    /**
+     * 是否无损压缩，无损压缩不使用压缩质量
+     */
+    public boolean isLossless() {
+        return mLossless;
+    }
+
+    private boolean isWebp() {
+        return ImageHeader.MIME_WEBP.equals(mMimeType);
+    }
+
+    /**
+     * 有损压缩的最高质量，Android 10开始WebP质量为100的时候会变成无损压缩，有损WebP最高使用99
+     */
+    int maxQuality() {
+        return isWebp() && !mLossless ? 99 : 100;
+    }
+
+    /**
+     * 无损压缩放不下目标大小的时候改用的有损格式：无损WebP改用有损WebP，PNG改用JPEG
+     */
+    OutputFormat lossy() {
+        if (!mLossless) {
+            return this;
+        }
+        return isWebp() ? WEBP : JPEG;
+    }
+
+    /**
+     * 是否保留透明度，JPEG没有透明度，有损WebP在4.3以前不能编码透明度
+     */
+    boolean keepsAlpha() {
+        if (isWebp()) {
+            return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+        }
+        return mCompressFormat == Bitmap.CompressFormat.PNG;
+    }
+
+    /**
+     * 这张图片能不能用这种格式编码，见 {@link #supporting(int, int)}。
+     * 无损WebP只在Android 10以上支持，之前质量为100的WebP仍然是有损的
+     */
+    boolean supports(int width, int height) {
+        if (!isWebp()) {
+            return true;
+        }
+        if (mLossless && Build.VERSION.SDK_INT < SDK_Q) {
+            return false;
+        }
+        return width <= WEBP_MAX_SIZE && height <= WEBP_MAX_SIZE;
+    }
+
+    /**
+     * 实际用来编码 width×height 的图片的格式：不支持无损WebP的时候改用PNG，
+     * 有损WebP放不下的特别长的图片改用JPEG
+     */
+    OutputFormat supporting(int width, int height) {
+        if (supports(width, height)) {
+            return this;
+        }
+        return mLossless ? PNG : JPEG;
+    }
+
+    /**
+     * 按MIME类型找到对应的格式，不认识的时候返回JPEG
+     */
+    static OutputFormat forMimeType(String mimeType) {
+        if (ImageHeader.MIME_WEBP.equals(mimeType)) {
+            return WEBP;
+        }
+        return ImageHeader.MIME_PNG.equals(mimeType) ? PNG : JPEG;
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+}
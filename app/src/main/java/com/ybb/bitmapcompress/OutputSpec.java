@@ -0,0 +1,145 @@
+package com.ybb.bitmapcompress;
+
+import static com.ybb.bitmapcompress.Preconditions.checkNotNull;
+
+/**
+ * 多尺寸压缩中的一种输出：按旋转以后的长边和短边限制尺寸，再按目标大小或固定质量编码
+ * <p>
+ * 例如原图、1280、720、320四种尺寸：
+ * <pre>
+ * new OutputSpec.Builder().build();
+ * new OutputSpec.Builder().maxSize(1280, 720).targetSize(200).build();
+ * new OutputSpec.Builder().maxSize(720, 720).targetSize(100).build();
+ * new OutputSpec.Builder().maxSize(320, 320).targetSize(30).build();
+ * </pre>
+ *
+ * @see Luban#loadPyramid(java.io.File)
+ */
+public final class OutputSpec {
+
+    /**
+     * 不指定目标大小的时候使用的压缩质量
+     */
+    public static final int DEFAULT_QUALITY = 90;
+
+    private final int mMaxLongSide;
+    private final int mMaxShortSide;
+    private final long mTargetSize;
+    private final int mQuality;
+    private final OutputFormat mFormat;
+
+    private OutputSpec(Builder builder) {
+        mMaxLongSide = builder.mMaxLongSide;
+        mMaxShortSide = builder.mMaxShortSide;
+        mTargetSize = builder.mTargetSize;
+        mQuality = builder.mQuality;
+        mFormat = builder.mFormat;
+    }
+
+    /**
+     * 长边的最大值，为0的时候不限制
+     */
+    public int getMaxLongSide() {
+        return mMaxLongSide;
+    }
+
+    /**
+     * 短边的最大值，为0的时候不限制
+     */
+    public int getMaxShortSide() {
+        return mMaxShortSide;
+    }
+
+    /**
+     * 期望的文件大小（K），为0的时候按 {@link #getQuality()} 编码
+     */
+    public long getTargetSize() {
+        return mTargetSize;
+    }
+
+    /**
+     * 固定的压缩质量，指定了目标大小的时候作为质量搜索的起点
+     */
+    public int getQuality() {
+        return mQuality;
+    }
+
+    /**
+     * 输出格式，默认是 {@link OutputFormat#JPEG}
+     */
+    public OutputFormat getFormat() {
+        return mFormat;
+    }
+
+    /**
+     * 把 width×height 的图片等比缩小到不超过长边和短边的限制，不会放大
+     */
+    int[] fit(int width, int height) {
+        int longSide = Math.max(width, height);
+        int shortSide = Math.min(width, height);
+        float scale = 1;
+        if (mMaxLongSide > 0 && longSide > mMaxLongSide) {
+            scale = (float) mMaxLongSide / longSide;
+        }
+        if (mMaxShortSide > 0 && shortSide * scale > mMaxShortSide) {
+            scale = (float) mMaxShortSide / shortSide;
+        }
+        if (scale >= 1) {
+            return new int[]{width, height};
+        }
+        return new int[]{Math.max(1, Math.round(width * scale)), Math.max(1, Math.round(height * scale))};
+    }
+
+    @Override
+    public String toString() {
+        return mMaxLongSide + "x" + mMaxShortSide + "@" + mTargetSize + "K/" + mQuality + "/" + mFormat;
+    }
+
+    public static final class Builder {
+        private int mMaxLongSide;
+        private int mMaxShortSide;
+        private long mTargetSize;
+        private int mQuality = DEFAULT_QUALITY;
+        private OutputFormat mFormat = OutputFormat.JPEG;
+
+        /**
+         * 限制旋转以后的长边和短边，为0的时候不限制
+         */
+        public Builder maxSize(int maxLongSide, int maxShortSide) {
+            if (maxLongSide < 0 || maxShortSide < 0) {
+                throw new IllegalArgumentException("size cannot be negative");
+            }
+            mMaxLongSide = maxLongSide;
+            mMaxShortSide = maxShortSide;
+            return this;
+        }
+
+        /**
+         * 期望的文件大小（K），降低质量直到文件小于这个大小
+         */
+        public Builder targetSize(long targetSize) {
+            if (targetSize < 0) {
+                throw new IllegalArgumentException("targetSize cannot be negative: " + targetSize);
+            }
+            mTargetSize = targetSize;
+            return this;
+        }
+
+        public Builder quality(int quality) {
+            if (quality < 0 || quality > 100) {
+                throw new IllegalArgumentException("quality must be in [0, 100]: " + quality);
+            }
+            mQuality = quality;
+            return this;
+        }
+
+        public Builder format(OutputFormat format) {
+            mFormat = checkNotNull(format, "format cannot be null");
+            return this;
+        }
+
+        public OutputSpec build() {
+            return new OutputSpec(this);
+        }
+    }
+}
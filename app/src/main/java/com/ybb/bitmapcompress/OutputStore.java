@@ -0,0 +1,249 @@
+package com.ybb.bitmapcompress;
+
+import android.content.Context;
+import android.os.Environment;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * 压缩后的文件的存放目录，数量、大小和保存时间超过限制的时候在后台删除最旧的文件
+ * <p>
+ * 原来每次压缩都往公共的图片目录里写一个文件，从来不删除，时间长了以后占用的空间越来越大，媒体库扫描也越来越慢。
+ * 现在压缩后的文件放在单独的目录里（SD卡可用的时候是 Pictures/Luban，否则是应用缓存目录下的 image），
+ * 目录里所有的文件都由这里管理：
+ * <ul>
+ * <li>先写入临时文件，写完以后再重命名，压缩的过程中崩溃留下的临时文件直接删除</li>
+ * <li>超过保存时间的文件删除；文件数或者总大小超过限制的时候从最旧的开始删除</li>
+ * <li>刚刚生成的文件调用者可能还没有使用，{@link #MIN_AGE} 以内的文件不删除</li>
+ * </ul>
+ * 清理在单独的低优先级线程上进行，每次只删除 {@link #BATCH_SIZE} 个文件，不会阻塞压缩。
+ * 公共图片目录下原来的文件无法和用户自己的图片区分，不会清理。
+ */
+final class OutputStore {
+
+    /**
+     * 默认最多保留的文件总大小（字节）
+     */
+    static final long DEFAULT_MAX_BYTES = 100 * 1024 * 1024;
+    /**
+     * 默认最多保留的文件数
+     */
+    static final int DEFAULT_MAX_COUNT = 500;
+    /**
+     * 默认的保存时间（毫秒）
+     */
+    static final long DEFAULT_MAX_AGE = 7L * 24 * 60 * 60 * 1000;
+    /**
+     * 生成以后多长时间以内的文件不删除（毫秒）
+     */
+    static final long MIN_AGE = 10 * 60 * 1000;
+    /**
+     * 两次扫描目录之间至少间隔多长时间（毫秒）
+     */
+    private static final long SCAN_INTERVAL = 60 * 1000;
+    /**
+     * 每次最多删除几个文件，剩下的重新提交到清理线程
+     */
+    private static final int BATCH_SIZE = 16;
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String TAG = "OutputStore";
+
+    private final Context mContext;
+    private volatile long mMaxBytes = DEFAULT_MAX_BYTES;
+    private volatile int mMaxCount = DEFAULT_MAX_COUNT;
+    private volatile long mMaxAge = DEFAULT_MAX_AGE;
+
+    /**
+     * 等待删除的文件，只在清理线程上访问
+     */
+    private final ArrayDeque<File> mPending = new ArrayDeque<>();
+    private long mLastScan;
+    private ExecutorService mJanitor;
+
+    OutputStore(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * 设置保留的上限，传入 {@link Long#MAX_VALUE} 或者 {@link Integer#MAX_VALUE} 表示不限制
+     *
+     * @param maxBytes 文件总大小（字节）
+     * @param maxCount 文件数
+     * @param maxAge   保存时间（毫秒）
+     */
+    void setQuota(long maxBytes, int maxCount, long maxAge) {
+        if (maxBytes < 0 || maxCount < 0 || maxAge < 0) {
+            throw new IllegalArgumentException("quota cannot be negative");
+        }
+        mMaxBytes = maxBytes;
+        mMaxCount = maxCount;
+        mMaxAge = maxAge;
+        synchronized (this) {
+            mLastScan = 0;
+        }
+        scheduleTrim();
+    }
+
+    /**
+     * 为一个新的压缩结果分配文件名，扩展名和格式一致，同时在后台检查是否需要清理
+     */
+    File newFile(OutputFormat format) throws CompressException {
+        File dir = currentDir();
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new CompressException("无法创建目录：" + dir.getAbsolutePath());
+        }
+        scheduleTrim();
+        return new File(dir, BitmapUtil.makeImageName(format.getExtension()));
+    }
+
+    /**
+     * 为只能顺序读取的原图分配一个临时文件，见 {@link SourceData#read}。
+     * 临时文件放在应用缓存目录里，压缩完成以后删除，崩溃留下的临时文件由清理线程删除
+     */
+    File newTempFile() throws IOException {
+        File dir = new File(mContext.getCacheDir(), "image");
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("无法创建目录：" + dir.getAbsolutePath());
+        }
+        return new File(dir, "source_" + BitmapUtil.makeImageName() + TEMP_SUFFIX);
+    }
+
+    /**
+     * 写入file之前使用的临时文件，写完以后重命名成file
+     */
+    static File tempFileFor(File file) {
+        return new File(file.getPath() + TEMP_SUFFIX);
+    }
+
+    private File currentDir() {
+        if (Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
+            return new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES), "Luban");
+        }
+        return new File(mContext.getCacheDir(), "image");
+    }
+
+    private File[] managedDirs() {
+        File internal = new File(mContext.getCacheDir(), "image");
+        if (Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
+            return new File[]{currentDir(), internal};
+        }
+        return new File[]{internal};
+    }
+
+    /**
+     * 距离上一次扫描超过 {@link #SCAN_INTERVAL} 的时候在清理线程上扫描一次
+     */
+    private void scheduleTrim() {
+        ExecutorService janitor;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (now - mLastScan < SCAN_INTERVAL) {
+                return;
+            }
+            mLastScan = now;
+            if (mJanitor == null) {
+                //只有一个线程，队列里最多等待一次清理，多余的请求直接丢弃
+                mJanitor = CompressExecutors.newBoundedExecutor(1, 1, "Luban-janitor",
+                        new ThreadPoolExecutor.DiscardPolicy());
+            }
+            janitor = mJanitor;
+        }
+        janitor.execute(new Runnable() {
+            @Override
+            public void run() {
+                scan();
+            }
+        });
+    }
+
+    private void scan() {
+        mPending.clear();
+        long now = System.currentTimeMillis();
+        for (File dir : managedDirs()) {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                mPending.addAll(select(files, now, mMaxBytes, mMaxCount, mMaxAge));
+            }
+        }
+        deleteBatch();
+    }
+
+    private void deleteBatch() {
+        for (int i = 0; i < BATCH_SIZE && !mPending.isEmpty(); i++) {
+            File file = mPending.poll();
+            if (!file.delete() && file.exists()) {
+                Log.w(TAG, "failed to delete " + file);
+            }
+        }
+        if (!mPending.isEmpty()) {
+            //剩下的下一次再删，中间可以执行新提交的扫描
+            mJanitor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    deleteBatch();
+                }
+            });
+        }
+    }
+
+    /**
+     * 选出需要删除的文件
+     *
+     * @param files 一个目录下的所有文件
+     * @param now   当前时间（毫秒）
+     * @return 从最旧的开始排列
+     */
+    static List<File> select(File[] files, long now, long maxBytes, int maxCount, long maxAge) {
+        final long[] lastModified = new long[files.length];
+        //按修改时间从新到旧排列，排序的过程中修改时间可能变化，先读出来
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            lastModified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                long x = lastModified[a];
+                long y = lastModified[b];
+                return x > y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+
+        List<File> expired = new ArrayList<>();
+        long bytes = 0;
+        int count = 0;
+        for (int index : order) {
+            File file = files[index];
+            if (!file.isFile()) {
+                continue;
+            }
+            long age = now - lastModified[index];
+            long length = file.length();
+            if (age < MIN_AGE) {
+                //刚生成的文件和正在写入的临时文件都保留，但是占用上限
+                bytes += length;
+                count++;
+            } else if (file.getName().endsWith(TEMP_SUFFIX) || age > maxAge
+                    || count >= maxCount || bytes + length > maxBytes) {
+                expired.add(file);
+            } else {
+                bytes += length;
+                count++;
+            }
+        }
+        //从最旧的开始删除
+        Collections.reverse(expired);
+        return expired;
+    }
+}
@@ -0,0 +1,279 @@
+package com.ybb.bitmapcompress;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * 按画质搜索压缩质量：找到和原图的相似度（SSIM）不低于阈值的最低压缩质量
+ * <p>
+ * 按固定的文件大小压缩的时候，简单的图片质量偏高、浪费空间，细节多的图片又被压得太狠。
+ * 这里直接比较压缩前后的画质：每个候选质量编码以后按较大的采样率解码（JPEG按采样率解码只需要很少的计算），
+ * 在缩小到 {@value #PLANE_SIZE} 像素左右的亮度平面上计算SSIM，比再编码一次快得多。
+ * 参考的亮度平面也是最高质量编码以后按同样的采样率解码得到的，和候选质量经过完全相同的缩小，
+ * 缩小的方法不同本身就会降低SSIM，让搜索偏向更高的质量。
+ * <p>
+ * SSIM随质量单调增加，先二分找到一个达到阈值和一个达不到阈值的质量，再在两者之间按SSIM插值。
+ */
+public final class PerceptualSearch {
+
+    /**
+     * 默认的SSIM阈值，高于这个值的时候一般看不出和原图的区别
+     */
+    public static final float DEFAULT_MIN_SSIM = 0.95f;
+    public static final int DEFAULT_MIN_QUALITY = 30;
+    public static final int DEFAULT_MAX_ENCODES = 6;
+    /**
+     * SSIM比阈值高出不到这么多的时候就不再继续降低质量
+     */
+    private static final float SSIM_TOLERANCE = 0.005f;
+    /**
+     * 比较画质用的亮度平面的长边
+     */
+    static final int PLANE_SIZE = 256;
+    /**
+     * 计算SSIM的窗口大小和步长
+     */
+    private static final int WINDOW = 8;
+    private static final int WINDOW_STEP = 4;
+    private static final double C1 = (0.01 * 255) * (0.01 * 255);
+    private static final double C2 = (0.03 * 255) * (0.03 * 255);
+
+    private final float mMinSsim;
+    private final int mMinQuality;
+    private final int mMaxEncodes;
+
+    public PerceptualSearch(float minSsim) {
+        this(minSsim, DEFAULT_MIN_QUALITY, DEFAULT_MAX_ENCODES);
+    }
+
+    /**
+     * @param minSsim    SSIM的阈值，0~1之间
+     * @param minQuality 最低的压缩质量
+     * @param maxEncodes 最多编码几次，超过以后使用已经找到的达到阈值的最低质量
+     */
+    public PerceptualSearch(float minSsim, int minQuality, int maxEncodes) {
+        if (!(minSsim > 0 && minSsim < 1)) {
+            throw new IllegalArgumentException("minSsim must be in (0, 1): " + minSsim);
+        }
+        if (minQuality < 0 || minQuality > 100) {
+            throw new IllegalArgumentException("minQuality must be in [0, 100]: " + minQuality);
+        }
+        if (maxEncodes < 1) {
+            throw new IllegalArgumentException("maxEncodes must be positive: " + maxEncodes);
+        }
+        mMinSsim = minSsim;
+        mMinQuality = minQuality;
+        mMaxEncodes = maxEncodes;
+    }
+
+    /**
+     * 搜索画质不低于阈值的最低压缩质量，最高质量也达不到阈值的时候使用最高质量
+     *
+     * @param bitmap     要编码的图片
+     * @param maxQuality 最高的压缩质量
+     */
+    public QualitySearch.Result search(Bitmap bitmap, int maxQuality) {
+        return search(bitmap, Bitmap.CompressFormat.JPEG, maxQuality);
+    }
+
+    /**
+     * 按指定的格式编码，搜索画质不低于阈值的最低压缩质量，WebP和JPEG一样可以按采样率解码
+     *
+     * @param bitmap     要编码的图片
+     * @param format     编码的格式
+     * @param maxQuality 最高的压缩质量
+     */
+    public QualitySearch.Result search(Bitmap bitmap, Bitmap.CompressFormat format, int maxQuality) {
+        int max = Math.max(mMinQuality, Math.min(100, maxQuality));
+        QualitySearch.Encoder encoder = QualitySearch.encoder(bitmap, format);
+        int sampleSize = 1;
+        while (Math.max(bitmap.getWidth(), bitmap.getHeight()) / (sampleSize * 2) >= PLANE_SIZE) {
+            sampleSize *= 2;
+        }
+        int width = Math.max(1, bitmap.getWidth() / sampleSize);
+        int height = Math.max(1, bitmap.getHeight() / sampleSize);
+        //按采样率解码出来的尺寸可能向上取整，多出来的像素放在这里
+        int[] pixels = new int[((bitmap.getWidth() + sampleSize - 1) / sampleSize)
+                * ((bitmap.getHeight() + sampleSize - 1) / sampleSize)];
+        int[] reference = new int[width * height];
+        int[] candidate = new int[width * height];
+
+        int referenceQuality = referenceQuality(format);
+        EncodeBuffer scratch = EncodeBuffer.obtain();
+        encoder.encode(referenceQuality, scratch);
+        int encodes = 1;
+        if (!decodePlane(scratch, bitmap.getWidth(), bitmap.getHeight(), sampleSize, pixels, reference,
+                width, height)) {
+            //解码不了就无法比较画质，使用最高质量
+            if (max != referenceQuality) {
+                scratch.reset();
+                encoder.encode(max, scratch);
+                encodes++;
+            }
+            return new QualitySearch.Result(max, encodes, false, scratch);
+        }
+
+        //lo是已知达不到阈值的最高质量，hi是已知达到阈值的最低质量，还没有试过的一边用-1表示SSIM未知
+        int lo = mMinQuality - 1;
+        double loSsim = -1;
+        int hi = max + 1;
+        double hiSsim = -1;
+        EncodeBuffer best = null;
+        if (max == referenceQuality) {
+            //参考的编码就是最高质量的结果
+            hi = max;
+            hiSsim = 1;
+            best = scratch;
+            scratch = EncodeBuffer.obtain();
+        }
+        int lastSide = 0;
+        int searchEncodes = 0;
+        while (hi - lo > 1 && searchEncodes < mMaxEncodes) {
+            int quality;
+            if (loSsim >= 0 && hiSsim > loSsim) {
+                quality = lo + (int) Math.round((mMinSsim - loSsim) * (hi - lo) / (hiSsim - loSsim));
+            } else {
+                quality = (lo + hi) >>> 1;
+            }
+            quality = Math.max(lo + 1, Math.min(hi - 1, quality));
+
+            scratch.reset();
+            encoder.encode(quality, scratch);
+            encodes++;
+            searchEncodes++;
+            double ssim = 0;
+            if (decodePlane(scratch, bitmap.getWidth(), bitmap.getHeight(), sampleSize, pixels, candidate,
+                    width, height)) {
+                ssim = ssim(reference, candidate, width, height);
+            }
+            if (ssim >= mMinSsim) {
+                hi = quality;
+                hiSsim = ssim;
+                EncodeBuffer t = best != null ? best : EncodeBuffer.obtain();
+                best = scratch;
+                scratch = t;
+                if (ssim - mMinSsim < SSIM_TOLERANCE) {
+                    break;
+                }
+                //Illinois修正，见 QualitySearch
+                if (lastSide > 0 && loSsim >= 0) loSsim = mMinSsim - (mMinSsim - loSsim) / 2;
+                lastSide = 1;
+            } else {
+                lo = quality;
+                loSsim = ssim;
+                if (lastSide < 0 && hiSsim >= 0) hiSsim = mMinSsim + (hiSsim - mMinSsim) / 2;
+                lastSide = -1;
+            }
+        }
+
+        if (best == null) {
+            //试过的质量都达不到阈值，使用最高质量
+            if (lo != max) {
+                scratch.reset();
+                encoder.encode(max, scratch);
+                encodes++;
+            }
+            return new QualitySearch.Result(max, encodes, false, scratch);
+        }
+        scratch.recycle();
+        return new QualitySearch.Result(hi, encodes, true, best);
+    }
+
+    /**
+     * 参考平面的编码质量：JPEG用100；WebP质量为100的时候是无损压缩，解码的方法不同，用有损的最高质量99
+     */
+    private static int referenceQuality(Bitmap.CompressFormat format) {
+        return format == Bitmap.CompressFormat.WEBP ? 99 : 100;
+    }
+
+    /**
+     * 按采样率解码，取出 width×height 的亮度平面
+     *
+     * @param pixels 存放解码出来的像素，至少能放下向上取整的尺寸
+     * @return 解码失败的时候返回false
+     */
+    private static boolean decodePlane(EncodeBuffer encoded, int sourceWidth, int sourceHeight, int sampleSize,
+                                       int[] pixels, int[] plane, int width, int height) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        //每次解码出来的尺寸都一样，解码到图片池里的同一张图片上
+        BitmapPool pool = BitmapPool.getDefault();
+        pool.prepareDecode(options, (sourceWidth + sampleSize - 1) / sampleSize,
+                (sourceHeight + sampleSize - 1) / sampleSize);
+        Bitmap decoded;
+        try {
+            decoded = BitmapFactory.decodeByteArray(encoded.array(), 0, encoded.size(), options);
+        } catch (IllegalArgumentException e) {
+            decoded = null;
+        }
+        if (decoded == null && options.inBitmap != null) {
+            pool.put(options.inBitmap);
+            options.inBitmap = null;
+            decoded = BitmapFactory.decodeByteArray(encoded.array(), 0, encoded.size(), options);
+        }
+        if (decoded == null) {
+            return false;
+        }
+        int decodedWidth = decoded.getWidth();
+        int decodedHeight = decoded.getHeight();
+        try {
+            if (decodedWidth * decodedHeight > pixels.length) {
+                return false;
+            }
+            decoded.getPixels(pixels, 0, decodedWidth, 0, 0, decodedWidth, decodedHeight);
+        } finally {
+            pool.put(decoded);
+        }
+        lumaPlane(pixels, decodedWidth, decodedHeight, plane, width, height);
+        return true;
+    }
+
+    /**
+     * 把解码出来的 srcWidth×srcHeight 个ARGB像素变成 width×height 的亮度平面。
+     * 参考平面和候选平面解码出来的尺寸相同，按同样的点取样，尺寸相同的时候不做任何缩放
+     */
+    static void lumaPlane(int[] pixels, int srcWidth, int srcHeight, int[] plane, int width, int height) {
+        for (int y = 0; y < height; y++) {
+            int row = (int) ((long) y * srcHeight / height) * srcWidth;
+            for (int x = 0; x < width; x++) {
+                plane[y * width + x] = PixelSampler.luma(pixels[row + (int) ((long) x * srcWidth / width)]);
+            }
+        }
+    }
+
+    /**
+     * 计算两个亮度平面的平均SSIM，窗口是 {@value #WINDOW}×{@value #WINDOW}，每隔 {@value #WINDOW_STEP} 个像素取一个窗口
+     */
+    static double ssim(int[] x, int[] y, int width, int height) {
+        int window = Math.min(WINDOW, Math.min(width, height));
+        double sum = 0;
+        int count = 0;
+        for (int top = 0; top + window <= height; top += WINDOW_STEP) {
+            for (int left = 0; left + window <= width; left += WINDOW_STEP) {
+                long sumX = 0, sumY = 0, sumXX = 0, sumYY = 0, sumXY = 0;
+                for (int j = top; j < top + window; j++) {
+                    int row = j * width;
+                    for (int i = left; i < left + window; i++) {
+                        int a = x[row + i];
+                        int b = y[row + i];
+                        sumX += a;
+                        sumY += b;
+                        sumXX += a * a;
+                        sumYY += b * b;
+                        sumXY += a * b;
+                    }
+                }
+                double n = window * window;
+                double meanX = sumX / n;
+                double meanY = sumY / n;
+                double varX = sumXX / n - meanX * meanX;
+                double varY = sumYY / n - meanY * meanY;
+                double cov = sumXY / n - meanX * meanY;
+                sum += (2 * meanX * meanY + C1) * (2 * cov + C2)
+                        / ((meanX * meanX + meanY * meanY + C1) * (varX + varY + C2));
+                count++;
+            }
+        }
+        return count == 0 ? 1 : sum / count;
+    }
+}
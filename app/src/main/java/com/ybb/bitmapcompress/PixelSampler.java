@@ -0,0 +1,85 @@
+package com.ybb.bitmapcompress;
+
+import android.graphics.Bitmap;
+
+/**
+ * 按网格采样图片的像素，每个采样点和它右边、下边的点一起交给 {@link Visitor}
+ * <p>
+ * 估算复杂度（{@link SizePredictor#complexity(Bitmap)}）和判断图片内容（{@link ImageContent}）共用，
+ * 最多读取 maxRows 对相邻的行，每行最多 maxColumns 个点，耗时和图片的大小无关。
+ */
+final class PixelSampler {
+
+    interface Visitor {
+        /**
+         * @param color 采样点的ARGB颜色
+         * @param right 右边的点
+         * @param below 下边的点
+         */
+        void visit(int color, int right, int below);
+    }
+
+    /**
+     * 读取图片的一行
+     */
+    private interface Rows {
+        void read(int[] line, int y);
+    }
+
+    private PixelSampler() {
+    }
+
+    /**
+     * @return 采样点的个数，图片的宽或者高小于2的时候为0
+     */
+    static int sample(final Bitmap bitmap, int maxRows, int maxColumns, Visitor visitor) {
+        final int width = bitmap.getWidth();
+        return sample(width, bitmap.getHeight(), maxRows, maxColumns, new Rows() {
+            @Override
+            public void read(int[] line, int y) {
+                bitmap.getPixels(line, 0, width, 0, y, width, 1);
+            }
+        }, visitor);
+    }
+
+    /**
+     * @param pixels width×height 个ARGB颜色，按行排列
+     */
+    static int sample(final int[] pixels, final int width, int height, int maxRows, int maxColumns,
+                      Visitor visitor) {
+        return sample(width, height, maxRows, maxColumns, new Rows() {
+            @Override
+            public void read(int[] line, int y) {
+                System.arraycopy(pixels, y * width, line, 0, width);
+            }
+        }, visitor);
+    }
+
+    private static int sample(int width, int height, int maxRows, int maxColumns, Rows rows, Visitor visitor) {
+        if (width < 2 || height < 2) {
+            return 0;
+        }
+        int rowCount = Math.min(maxRows, height - 1);
+        int step = Math.max(1, (width - 1) / maxColumns);
+        int[] line = new int[width];
+        int[] next = new int[width];
+        int count = 0;
+        for (int r = 0; r < rowCount; r++) {
+            int y = (int) ((long) r * (height - 1) / rowCount);
+            rows.read(line, y);
+            rows.read(next, y + 1);
+            for (int x = 0; x + 1 < width; x += step) {
+                visitor.visit(line[x], line[x + 1], next[x]);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 颜色的亮度，0~255
+     */
+    static int luma(int color) {
+        return (((color >> 16) & 0xff) * 77 + ((color >> 8) & 0xff) * 150 + (color & 0xff) * 29) >> 8;
+    }
+}
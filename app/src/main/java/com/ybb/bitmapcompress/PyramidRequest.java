@@ -0,0 +1,140 @@
+package com.ybb.bitmapcompress;
+
+import android.net.Uri;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static com.ybb.bitmapcompress.Preconditions.checkNotNull;
+
+/**
+ * 多尺寸压缩请求：把一张图片压缩成几种尺寸
+ * <p>
+ * 由 {@link Luban#loadPyramid(File)} 或 {@link Luban#loadPyramid(Uri)} 返回的 {@link Builder} 创建，创建以后不可修改。
+ * 原图只解码一次，缩放到最大的尺寸，每个更小的尺寸都从比它大一级的图片缩小得到，
+ * 最后同时编码所有的尺寸。比每种尺寸单独压缩一次少了重复的读取、解码和旋转。
+ */
+public final class PyramidRequest {
+
+    private final File mFile;
+    private final Uri mUri;
+    private final InputStream mInputStream;
+    private final List<OutputSpec> mOutputs;
+    private final OnPyramidCompressListener mListener;
+    private final Executor mCallbackExecutor;
+
+    private PyramidRequest(Builder builder) {
+        mFile = builder.mFile;
+        mUri = builder.mUri;
+        mInputStream = builder.mInputStream;
+        mOutputs = Collections.unmodifiableList(new ArrayList<>(builder.mOutputs));
+        mListener = builder.mListener;
+        mCallbackExecutor = builder.mCallbackExecutor;
+    }
+
+    /**
+     * 要压缩的图片文件，从Uri或者输入流压缩的时候为null
+     */
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * 要压缩的图片的Uri，见 {@link Luban#loadPyramid(Uri)}
+     */
+    public Uri getUri() {
+        return mUri;
+    }
+
+    /**
+     * 要压缩的图片的输入流，压缩的时候读取全部内容并关闭
+     */
+    public InputStream getInputStream() {
+        return mInputStream;
+    }
+
+    /**
+     * 要输出的尺寸，压缩后的文件按这个顺序返回
+     */
+    public List<OutputSpec> getOutputs() {
+        return mOutputs;
+    }
+
+    public OnPyramidCompressListener getListener() {
+        return mListener;
+    }
+
+    /**
+     * 异步压缩的回调线程，为null的时候在主线程上回调
+     */
+    public Executor getCallbackExecutor() {
+        return mCallbackExecutor;
+    }
+
+    public static final class Builder {
+        private final Luban mLuban;
+        private File mFile;
+        private Uri mUri;
+        private InputStream mInputStream;
+        private final List<OutputSpec> mOutputs = new ArrayList<>();
+        private OnPyramidCompressListener mListener;
+        private Executor mCallbackExecutor;
+
+        Builder(Luban luban, File file) {
+            mLuban = luban;
+            mFile = file;
+        }
+
+        Builder(Luban luban, Uri uri) {
+            mLuban = luban;
+            mUri = uri;
+        }
+
+        Builder(Luban luban, InputStream in) {
+            mLuban = luban;
+            mInputStream = in;
+        }
+
+        public Builder addOutput(OutputSpec output) {
+            mOutputs.add(checkNotNull(output, "output cannot be null"));
+            return this;
+        }
+
+        public Builder setCompressListener(OnPyramidCompressListener listener) {
+            mListener = listener;
+            return this;
+        }
+
+        /**
+         * 设置异步压缩的回调线程，例如 {@link CompressExecutors#mainThread()} 或 {@link CompressExecutors#immediate()}
+         */
+        public Builder callbackOn(Executor executor) {
+            mCallbackExecutor = executor;
+            return this;
+        }
+
+        public PyramidRequest build() {
+            if (mFile == null && mUri == null && mInputStream == null) {
+                throw new NullPointerException("the image cannot be null, please call .loadPyramid() before this method!");
+            }
+            if (mOutputs.isEmpty()) {
+                throw new IllegalStateException("no output, please call .addOutput() before this method!");
+            }
+            return new PyramidRequest(this);
+        }
+
+        /**
+         * 在压缩流水线中压缩，不会阻塞当前线程
+         *
+         * @return 压缩任务的句柄，可以用来取消压缩或者等待压缩结果
+         * @see Luban#launchAsync(PyramidRequest)
+         */
+        public CompressTask<List<File>> launchAsync() {
+            return mLuban.launchAsync(build());
+        }
+    }
+}
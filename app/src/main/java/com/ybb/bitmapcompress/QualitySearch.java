@@ -0,0 +1,471 @@
+package com.ybb.bitmapcompress;
+
+import android.graphics.Bitmap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * 按目标大小搜索压缩质量
+ * <p>
+ * 原来的做法是从100开始每次降低6，最多要编码17次。这里先用起始质量编码一次，放不下的时候在
+ * [最低质量, 起始质量) 之间用试位法搜索不超过目标大小的最高质量，
+ * 结果落在目标大小的容差范围内就提前结束，一般只需要编码4~6次。
+ * <p>
+ * 搜索过程中只用两个 {@link EncodeBuffer}：一个保存目前最好的结果，一个用来尝试新的质量，
+ * 文件大小直接读缓冲区的长度，不会复制编码后的数据。
+ * <p>
+ * 能够估算编码以后的大小的时候用 {@link #search(Encoder, long, int, SizeModel)}，
+ * 从估算的质量开始搜索，一般一两次就能找到。
+ * <p>
+ * 对单张图片的耗时敏感的时候可以用 {@link #search(Encoder, long, int, Executor, int)}，
+ * 每一轮在多个线程上同时尝试几个质量，一般两三轮就能结束。
+ */
+public final class QualitySearch {
+
+    /**
+     * 编码器，把图片按指定的质量编码到输出流中。并行搜索的时候会在多个线程上同时调用。
+     */
+    public interface Encoder {
+        void encode(int quality, OutputStream out);
+    }
+
+    /**
+     * 编码以后的文件大小的估算
+     */
+    public interface SizeModel {
+        /**
+         * @return 按这个质量编码以后大约多少字节
+         */
+        double estimate(int quality);
+
+        /**
+         * 搜索过程中每次编码以后调用，可以用来修正估算
+         */
+        void onEncoded(int quality, int bytes);
+    }
+
+    /**
+     * 搜索的结果
+     */
+    public static final class Result {
+        private final int mQuality;
+        private final int mEncodeCount;
+        private final boolean mFits;
+        private final EncodeBuffer mBytes;
+
+        Result(int quality, int encodeCount, boolean fits, EncodeBuffer bytes) {
+            mQuality = quality;
+            mEncodeCount = encodeCount;
+            mFits = fits;
+            mBytes = bytes;
+        }
+
+        /**
+         * 最终使用的压缩质量
+         */
+        public int getQuality() {
+            return mQuality;
+        }
+
+        /**
+         * 一共编码了几次
+         */
+        public int getEncodeCount() {
+            return mEncodeCount;
+        }
+
+        /**
+         * 是否达到了目标大小，最低质量也放不下的时候为false，这时结果是最低质量的编码
+         */
+        public boolean fits() {
+            return mFits;
+        }
+
+        public int size() {
+            return mBytes.size();
+        }
+
+        public void writeTo(OutputStream out) throws IOException {
+            mBytes.writeTo(out);
+        }
+
+        /**
+         * 编码后的数据，有效数据是前 {@link #size()} 个字节
+         */
+        byte[] array() {
+            return mBytes.array();
+        }
+
+        /**
+         * 归还缓冲区，之后不能再读取结果
+         */
+        void recycle() {
+            mBytes.recycle();
+        }
+    }
+
+    public static final int DEFAULT_MIN_QUALITY = 0;
+    /**
+     * 默认的容差：结果不超过目标大小，并且不小于目标大小的95%时就不再继续搜索
+     */
+    public static final float DEFAULT_TOLERANCE = 0.05f;
+    public static final int DEFAULT_MAX_ENCODES = 8;
+    /**
+     * 并行搜索最多进行几轮，每一轮尝试的质量之间的间隔缩小为上一轮的 1/(parallelism+1)
+     */
+    public static final int MAX_PARALLEL_ROUNDS = 3;
+    /**
+     * 按最近两次编码的大小外推的时候，质量一次最多变化多少
+     */
+    private static final int MAX_EXTRAPOLATION = 40;
+
+    /**
+     * 各压缩级别共用的默认配置
+     */
+    public static final QualitySearch DEFAULT =
+            new QualitySearch(DEFAULT_MIN_QUALITY, DEFAULT_TOLERANCE, DEFAULT_MAX_ENCODES);
+
+    private final int mMinQuality;
+    private final float mTolerance;
+    private final int mMaxEncodes;
+
+    /**
+     * @param minQuality 最低的压缩质量
+     * @param tolerance  容差，0~1之间
+     * @param maxEncodes 最多编码几次，超过以后使用已经找到的最好的结果
+     */
+    public QualitySearch(int minQuality, float tolerance, int maxEncodes) {
+        if (minQuality < 0 || minQuality > 100) {
+            throw new IllegalArgumentException("minQuality must be in [0, 100]: " + minQuality);
+        }
+        if (tolerance < 0 || tolerance >= 1) {
+            throw new IllegalArgumentException("tolerance must be in [0, 1): " + tolerance);
+        }
+        if (maxEncodes < 2) {
+            throw new IllegalArgumentException("maxEncodes must be at least 2: " + maxEncodes);
+        }
+        mMinQuality = minQuality;
+        mTolerance = tolerance;
+        mMaxEncodes = maxEncodes;
+    }
+
+    /**
+     * 把bitmap包装成编码器
+     */
+    public static Encoder encoder(final Bitmap bitmap, final Bitmap.CompressFormat format) {
+        return new Encoder() {
+            @Override
+            public void encode(int quality, OutputStream out) {
+                bitmap.compress(format, quality, out);
+            }
+        };
+    }
+
+    /**
+     * 搜索不超过目标大小的最高压缩质量
+     *
+     * @param encoder      编码器
+     * @param targetBytes  目标大小（字节）
+     * @param startQuality 起始质量，也是最高的质量
+     */
+    public Result search(Encoder encoder, long targetBytes, int startQuality) {
+        int start = Math.max(mMinQuality, Math.min(100, startQuality));
+        EncodeBuffer first = EncodeBuffer.obtain();
+        encoder.encode(start, first);
+        if (first.size() <= targetBytes || start == mMinQuality) {
+            return new Result(start, 1, first.size() <= targetBytes, first);
+        }
+        return refine(encoder, targetBytes, mMinQuality - 1, 0, null, start, first.size(), first, 1);
+    }
+
+    /**
+     * 按估算的大小搜索不超过目标大小的最高压缩质量
+     * <p>
+     * 先编码估算大小落在容差范围中间的质量，估算准确的时候只需要编码一次。不准的时候按实际大小和估算大小的比例
+     * 校正估算以后再猜一次，之后按最近两次编码的大小外推。找到一个放得下和一个放不下的质量以后，
+     * 和 {@link #search(Encoder, long, int)} 一样在两者之间插值。
+     *
+     * @param encoder     编码器
+     * @param targetBytes 目标大小（字节）
+     * @param maxQuality  最高的质量
+     * @param model       大小的估算
+     */
+    public Result search(Encoder encoder, long targetBytes, int maxQuality, SizeModel model) {
+        int max = Math.max(mMinQuality, Math.min(100, maxQuality));
+        double aim = targetBytes * (1 - mTolerance / 2);
+        double scale = 1;
+        //lo是已知放得下的最高质量，hi是已知放不下的最低质量
+        int lo = mMinQuality - 1;
+        double loSize = 0;
+        int hi = max + 1;
+        double hiSize = -1;
+        EncodeBuffer best = null;
+        EncodeBuffer scratch = EncodeBuffer.obtain();
+        int encodes = 0;
+        int lastQuality = -1;
+        int lastSize = 0;
+        int previousQuality = -1;
+        int previousSize = 0;
+        while (encodes < mMaxEncodes) {
+            int quality;
+            if (previousQuality >= 0 && lastSize != previousSize) {
+                double step = (aim - lastSize) * (lastQuality - previousQuality) / (lastSize - previousSize);
+                //两次的大小很接近的时候外推得太远不可靠
+                step = Math.max(-MAX_EXTRAPOLATION, Math.min(MAX_EXTRAPOLATION, step));
+                quality = lastQuality + (int) Math.round(step);
+                quality = Math.max(lo + 1, Math.min(hi - 1, quality));
+            } else {
+                quality = lo + 1;
+                for (int q = hi - 1; q > lo + 1; q--) {
+                    if (scale * model.estimate(q) <= aim) {
+                        quality = q;
+                        break;
+                    }
+                }
+            }
+            scratch.reset();
+            encoder.encode(quality, scratch);
+            encodes++;
+            int size = scratch.size();
+            model.onEncoded(quality, size);
+            double estimate = model.estimate(quality);
+            if (estimate > 0) {
+                scale = size / estimate;
+            }
+            previousQuality = lastQuality;
+            previousSize = lastSize;
+            lastQuality = quality;
+            lastSize = size;
+            if (size <= targetBytes) {
+                lo = quality;
+                loSize = size;
+                EncodeBuffer t = best != null ? best : EncodeBuffer.obtain();
+                best = scratch;
+                scratch = t;
+                if (lo == max || size >= targetBytes * (1 - mTolerance)) {
+                    break;
+                }
+            } else {
+                hi = quality;
+                hiSize = size;
+                if (hi == mMinQuality) {
+                    return new Result(mMinQuality, encodes, false, scratch);
+                }
+            }
+            if (best != null && hiSize >= 0) {
+                return refine(encoder, targetBytes, lo, loSize, best, hi, hiSize, scratch, encodes);
+            }
+        }
+
+        if (best == null) {
+            //编码次数用完了还没有找到，使用最低质量
+            scratch.reset();
+            encoder.encode(mMinQuality, scratch);
+            encodes++;
+            return new Result(mMinQuality, encodes, scratch.size() <= targetBytes, scratch);
+        }
+        scratch.recycle();
+        return new Result(lo, encodes, true, best);
+    }
+
+    /**
+     * 在已知放得下的质量lo和放不下的质量hi之间搜索
+     * <p>
+     * 按大小和质量近似线性插值（试位法），同一边连续两次被替换的时候把另一边的大小向目标减半
+     * （Illinois修正），避免一直从同一边慢慢逼近。
+     *
+     * @param best    lo的编码结果，lo还没有编码过的时候为null，这时lo是最低质量下面一格，大小按0估算
+     * @param scratch 用来尝试新的质量的缓冲区
+     */
+    private Result refine(Encoder encoder, long targetBytes, int lo, double loSize, EncodeBuffer best,
+                          int hi, double hiSize, EncodeBuffer scratch, int encodes) {
+        int lastSide = 0;
+        while (hi - lo > 1 && encodes < mMaxEncodes) {
+            int quality = hiSize > loSize
+                    ? lo + (int) Math.round((targetBytes - loSize) * (hi - lo) / (hiSize - loSize))
+                    : (lo + hi) >>> 1;
+            quality = Math.max(lo + 1, Math.min(hi - 1, quality));
+
+            scratch.reset();
+            encoder.encode(quality, scratch);
+            encodes++;
+            if (scratch.size() <= targetBytes) {
+                lo = quality;
+                loSize = scratch.size();
+                EncodeBuffer t = best != null ? best : EncodeBuffer.obtain();
+                best = scratch;
+                scratch = t;
+                if (loSize >= targetBytes * (1 - mTolerance)) {
+                    break;
+                }
+                if (lastSide < 0) hiSize = targetBytes + (hiSize - targetBytes) / 2;
+                lastSide = -1;
+            } else {
+                hi = quality;
+                hiSize = scratch.size();
+                if (lastSide > 0) loSize = targetBytes - (targetBytes - loSize) / 2;
+                lastSide = 1;
+            }
+        }
+
+        if (best == null) {
+            //最低质量也放不下，或者编码次数用完了还没有找到，使用最低质量。
+            //hi是最低质量的时候最后一次编码的就是最低质量
+            if (hi != mMinQuality) {
+                scratch.reset();
+                encoder.encode(mMinQuality, scratch);
+                encodes++;
+            }
+            return new Result(mMinQuality, encodes, scratch.size() <= targetBytes, scratch);
+        }
+        scratch.recycle();
+        return new Result(lo, encodes, true, best);
+    }
+
+    /**
+     * 并行搜索不超过目标大小的最高压缩质量
+     * <p>
+     * 第一轮同时编码起始质量和 [最低质量, 起始质量) 之间均匀分布的几个质量，之后每一轮在已知放得下和放不下的
+     * 两个质量之间再均匀地尝试几个，直到结果落在容差范围内。一共编码的次数比 {@link #search(Encoder, long, int)}
+     * 多，但是每一轮的耗时只相当于编码一次，单张图片的总耗时更短。
+     * <p>
+     * 当前线程也参与编码：交给executor的编码还没有开始执行的时候由当前线程自己执行，
+     * 所以executor繁忙或者拒绝执行的时候不会卡住，只是退化成顺序编码。
+     *
+     * @param encoder      编码器，必须可以在多个线程上同时调用
+     * @param targetBytes  目标大小（字节）
+     * @param startQuality 起始质量，也是最高的质量
+     * @param executor     执行其他编码的线程池
+     * @param parallelism  每一轮同时编码几个质量（包括当前线程）
+     */
+    public Result search(Encoder encoder, long targetBytes, int startQuality, Executor executor, int parallelism) {
+        if (parallelism < 2) {
+            return search(encoder, targetBytes, startQuality);
+        }
+        int start = Math.max(mMinQuality, Math.min(100, startQuality));
+        int[] qualities = new int[parallelism];
+        EncodeBuffer[] buffers = new EncodeBuffer[parallelism];
+
+        //lo是已知放得下的最高质量，hi是已知放不下的最低质量
+        int lo = mMinQuality - 1;
+        int hi = start + 1;
+        EncodeBuffer best = null;
+        int encodes = 0;
+        qualities[0] = start;
+        int count = 1 + spread(lo, start, qualities, 1, parallelism - 1);
+        for (int round = 1; ; round++) {
+            encodeAll(encoder, qualities, buffers, count, executor);
+            encodes += count;
+            for (int i = 0; i < count; i++) {
+                EncodeBuffer buffer = buffers[i];
+                buffers[i] = null;
+                if (buffer.size() <= targetBytes) {
+                    if (qualities[i] > lo) {
+                        if (best != null) best.recycle();
+                        best = buffer;
+                        lo = qualities[i];
+                        continue;
+                    }
+                } else if (qualities[i] < hi) {
+                    hi = qualities[i];
+                }
+                buffer.recycle();
+            }
+            if (hi - lo <= 1 || round >= MAX_PARALLEL_ROUNDS
+                    || best != null && best.size() >= targetBytes * (1 - mTolerance)) {
+                break;
+            }
+            count = spread(lo, hi, qualities, 0, parallelism);
+        }
+
+        if (best == null) {
+            //最低质量也放不下，或者轮数用完了还没有找到，使用最低质量
+            best = EncodeBuffer.obtain();
+            encoder.encode(mMinQuality, best);
+            encodes++;
+            return new Result(mMinQuality, encodes, best.size() <= targetBytes, best);
+        }
+        return new Result(lo, encodes, true, best);
+    }
+
+    /**
+     * 在 (lo, hi) 之间均匀地取最多max个质量，从qualities[offset]开始存放
+     *
+     * @return 取了几个质量
+     */
+    private static int spread(int lo, int hi, int[] qualities, int offset, int max) {
+        int count = Math.min(max, hi - lo - 1);
+        for (int i = 0; i < count; i++) {
+            qualities[offset + i] = lo + (hi - lo) * (count - i) / (count + 1);
+        }
+        return count;
+    }
+
+    /**
+     * 同时编码前count个质量，第一个在当前线程上编码，其余的交给executor
+     */
+    private static void encodeAll(final Encoder encoder, int[] qualities, EncodeBuffer[] buffers, int count,
+                                  Executor executor) {
+        List<FutureTask<Void>> tasks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            buffers[i] = EncodeBuffer.obtain();
+        }
+        for (int i = 1; i < count; i++) {
+            final int quality = qualities[i];
+            final EncodeBuffer buffer = buffers[i];
+            FutureTask<Void> task = new FutureTask<>(new Runnable() {
+                @Override
+                public void run() {
+                    encoder.encode(quality, buffer);
+                }
+            }, null);
+            tasks.add(task);
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException ignored) {
+                //下面由当前线程执行
+            }
+        }
+        try {
+            encoder.encode(qualities[0], buffers[0]);
+        } finally {
+            for (FutureTask<Void> task : tasks) {
+                //还没有开始执行的编码由当前线程执行，已经开始或者完成的不会重复执行
+                task.run();
+                try {
+                    await(task);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof Error) throw (Error) cause;
+                    if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                    throw new RuntimeException(cause);
+                }
+            }
+        }
+    }
+
+    /**
+     * 等待task结束，不响应中断：缓冲区或者图片还在被其他线程使用，必须等编码结束。中断状态在返回以后恢复
+     */
+    static <T> T await(FutureTask<T> task) throws ExecutionException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+}
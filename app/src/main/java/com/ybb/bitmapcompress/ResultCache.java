@@ -0,0 +1,211 @@
+package com.ybb.bitmapcompress;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 压缩结果的磁盘缓存，保存在 {@link Luban#getPhotoCacheDir(android.content.Context)} 里
+ * <p>
+ * 同一张图片用同样的参数再压缩一次（重新发送、失败重试）的时候，直接复制上一次的结果，不需要解码和编码。
+ * 按原图的路径、大小、修改时间和压缩参数计算缓存的key，原图改变以后自然不会命中。
+ * <p>
+ * 每个结果是一个单独的文件，先写入临时文件再重命名，所以不需要日志文件：进程在写入的过程中崩溃只会留下临时文件，
+ * 下一次打开缓存的时候删除。最近使用的顺序保存在文件的修改时间里，总大小超过上限的时候删除最久没有使用的结果。
+ */
+final class ResultCache {
+
+    /**
+     * 默认最多缓存多少字节
+     */
+    static final long DEFAULT_MAX_SIZE = 32 * 1024 * 1024;
+    /**
+     * 压缩算法改变以后修改这个版本号，之前缓存的结果就不会再命中
+     */
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".jpg";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File mDir;
+    private final long mMaxSize;
+    /**
+     * key -> 文件大小，按访问的顺序排列，最久没有使用的在最前面
+     */
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mSize;
+    private boolean mLoaded;
+
+    ResultCache(File dir, long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+        }
+        mDir = dir;
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * 计算缓存的key
+     *
+     * @param format 输出格式的名字，见 {@link OutputFormat#toString()}
+     */
+    static String key(File source, int gear, String format, boolean lowLatency, float minSsim) {
+        String identity = VERSION + "|" + source.getAbsolutePath() + "|" + source.length() + "|"
+                + source.lastModified() + "|" + gear + "|" + format + "|" + lowLatency + "|" + minSsim;
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(identity.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * @return 缓存的结果，没有的时候返回null
+     */
+    synchronized File get(String key) {
+        load();
+        if (mEntries.get(key) == null) {
+            return null;
+        }
+        File file = entryFile(key);
+        if (!file.isFile()) {
+            //被其他地方删除了
+            remove(key);
+            return null;
+        }
+        //记录最近使用的时间，下一次打开的时候按它排序
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /**
+     * 保存压缩结果，写入失败的时候只是不缓存
+     */
+    void put(String key, QualitySearch.Result result) {
+        File temp = new File(mDir, key + "." + Thread.currentThread().getId() + TEMP_SUFFIX);
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(temp);
+            result.writeTo(fos);
+            fos.close();
+            fos = null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            SourceData.closeQuietly(fos);
+            temp.delete();
+            return;
+        }
+        synchronized (this) {
+            load();
+            File file = entryFile(key);
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                return;
+            }
+            Long previous = mEntries.put(key, file.length());
+            if (previous != null) {
+                mSize -= previous;
+            }
+            mSize += file.length();
+            trimToSize(mMaxSize);
+        }
+    }
+
+    /**
+     * 删除所有缓存的结果
+     */
+    synchronized void clear() {
+        load();
+        trimToSize(0);
+    }
+
+    synchronized long size() {
+        load();
+        return mSize;
+    }
+
+    /**
+     * 第一次使用的时候读取目录里已有的结果，删除崩溃留下的临时文件
+     */
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long x = a.lastModified();
+                long y = b.lastModified();
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(TEMP_SUFFIX)) {
+                file.delete();
+            } else if (name.endsWith(SUFFIX) && file.isFile()) {
+                mEntries.put(name.substring(0, name.length() - SUFFIX.length()), file.length());
+                mSize += file.length();
+            }
+        }
+        trimToSize(mMaxSize);
+    }
+
+    private void remove(String key) {
+        Long size = mEntries.remove(key);
+        if (size != null) {
+            mSize -= size;
+        }
+    }
+
+    private void trimToSize(long maxSize) {
+        Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+        while (mSize > maxSize && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            iterator.remove();
+            mSize -= eldest.getValue();
+            entryFile(eldest.getKey()).delete();
+        }
+    }
+
+    private File entryFile(String key) {
+        return new File(mDir, key + SUFFIX);
+    }
+
+    /**
+     * 把缓存的结果复制到新的文件
+     */
+    static void copy(File from, File to) throws IOException {
+        InputStream in = new FileInputStream(from);
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(to);
+            SourceData.copy(in, out);
+            out.close();
+            out = null;
+        } finally {
+            in.close();
+            SourceData.closeQuietly(out);
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.ybb.bitmapcompress;
+
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+
+/**
+ * 估算JPEG或者有损WebP编码以后的文件大小，用来直接猜出放得下目标大小的压缩质量，每种格式分别估算
+ * <p>
+ * 文件大小按 像素数 × 每个像素的字节数(质量) × 复杂度系数 估算：
+ * <ul>
+ * <li>每个像素的字节数按质量每10分一档保存，一开始是普通照片的经验值，每次压缩完成以后根据实际的大小修正</li>
+ * <li>复杂度是在图片上均匀取样得到的相邻像素之间的平均亮度差，细节越多的图片编码以后越大</li>
+ * </ul>
+ * 修正以后的数据保存在 {@link SharedPreferences} 里，下次启动应用的时候继续使用。
+ */
+final class SizePredictor {
+
+    static final String PREFS_NAME = "luban_size_predictor";
+    private static final String KEY_BYTES_PER_PIXEL = "bytes_per_pixel";
+
+    /**
+     * 质量为 0,10,20...100 时每个像素的字节数，复杂度为 {@link #REFERENCE_COMPLEXITY} 的普通照片
+     */
+    private static final float[] DEFAULT_BYTES_PER_PIXEL = {
+            0.03f, 0.06f, 0.09f, 0.12f, 0.15f, 0.17f, 0.20f, 0.24f, 0.30f, 0.45f, 1.30f
+    };
+    /**
+     * 同样的质量下有损WebP的大小大约是JPEG的多少，修正之前的初始值
+     */
+    private static final float WEBP_SIZE_RATIO = 0.7f;
+    static final float REFERENCE_COMPLEXITY = 12;
+    /**
+     * 纯色的图片编码以后也有一定的大小，复杂度为0的时候系数不能是0
+     */
+    private static final float COMPLEXITY_OFFSET = 4;
+    /**
+     * 每次修正向实际大小靠近的比例
+     */
+    private static final float LEARNING_RATE = 0.5f;
+    /**
+     * 质量相差多少的时候修正的比例减少到 1/e
+     */
+    private static final float LEARNING_DISTANCE = 20;
+    /**
+     * 取样的行数和每行的点数
+     */
+    private static final int SAMPLE_COUNT = 64;
+
+    private final SharedPreferences mPrefs;
+    private final String mKey;
+    private final float[] mBytesPerPixel;
+    private boolean mDirty;
+
+    /**
+     * 估算JPEG的大小
+     *
+     * @param prefs 保存修正数据的位置，为null的时候不保存
+     */
+    SizePredictor(SharedPreferences prefs) {
+        this(prefs, OutputFormat.JPEG);
+    }
+
+    /**
+     * @param prefs  保存修正数据的位置，为null的时候不保存
+     * @param format 估算哪种格式的大小，无损WebP按有损WebP估算
+     */
+    SizePredictor(SharedPreferences prefs, OutputFormat format) {
+        mPrefs = prefs;
+        mBytesPerPixel = DEFAULT_BYTES_PER_PIXEL.clone();
+        if (format.getCompressFormat() == OutputFormat.JPEG.getCompressFormat()) {
+            mKey = KEY_BYTES_PER_PIXEL;
+        } else {
+            mKey = KEY_BYTES_PER_PIXEL + "_" + OutputFormat.WEBP;
+            for (int i = 0; i < mBytesPerPixel.length; i++) {
+                mBytesPerPixel[i] *= WEBP_SIZE_RATIO;
+            }
+        }
+        if (prefs != null) {
+            load(prefs.getString(mKey, null));
+        }
+    }
+
+    /**
+     * 一张图片的大小估算
+     *
+     * @param pixels     像素数
+     * @param complexity 复杂度，见 {@link #complexity(Bitmap)}
+     */
+    QualitySearch.SizeModel model(final long pixels, final float complexity) {
+        final double factor = pixels * complexityFactor(complexity);
+        return new QualitySearch.SizeModel() {
+            @Override
+            public double estimate(int quality) {
+                return factor * bytesPerPixel(quality);
+            }
+
+            @Override
+            public void onEncoded(int quality, int bytes) {
+                learn(pixels, complexity, quality, bytes);
+            }
+        };
+    }
+
+    /**
+     * 根据实际编码出来的大小修正估算，离这个质量越近的档修正得越多。修正以后调用 {@link #save()} 保存。
+     */
+    void learn(long pixels, float complexity, int quality, long bytes) {
+        if (pixels <= 0 || bytes <= 0 || quality < 0 || quality > 100) {
+            return;
+        }
+        synchronized (this) {
+            double ratio = bytes / (pixels * complexityFactor(complexity) * bytesPerPixel(quality));
+            //个别特殊的图片不要把估算带偏太多
+            ratio = Math.max(0.25, Math.min(4, ratio));
+            //离这个质量越远的档修正得越少
+            for (int i = 0; i < mBytesPerPixel.length; i++) {
+                double weight = Math.exp(-Math.abs(quality - i * 10) / LEARNING_DISTANCE);
+                mBytesPerPixel[i] *= Math.pow(ratio, LEARNING_RATE * weight);
+            }
+            //质量越高文件越大，以刚修正过的这一档为准调整两边
+            int index = Math.min((quality + 5) / 10, mBytesPerPixel.length - 1);
+            for (int i = index + 1; i < mBytesPerPixel.length; i++) {
+                mBytesPerPixel[i] = Math.max(mBytesPerPixel[i], mBytesPerPixel[i - 1]);
+            }
+            for (int i = index - 1; i >= 0; i--) {
+                mBytesPerPixel[i] = Math.min(mBytesPerPixel[i], mBytesPerPixel[i + 1]);
+            }
+            mDirty = true;
+        }
+    }
+
+    /**
+     * 保存修正以后的数据
+     */
+    void save() {
+        String saved;
+        synchronized (this) {
+            if (!mDirty || mPrefs == null) {
+                return;
+            }
+            mDirty = false;
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < mBytesPerPixel.length; i++) {
+                if (i > 0) sb.append(',');
+                sb.append(mBytesPerPixel[i]);
+            }
+            saved = sb.toString();
+        }
+        mPrefs.edit().putString(mKey, saved).apply();
+    }
+
+    synchronized double bytesPerPixel(int quality) {
+        quality = Math.max(0, Math.min(100, quality));
+        int index = Math.min(quality / 10, mBytesPerPixel.length - 2);
+        float weight = (quality - index * 10) / 10f;
+        return mBytesPerPixel[index] * (1 - weight) + mBytesPerPixel[index + 1] * weight;
+    }
+
+    private static double complexityFactor(float complexity) {
+        return (complexity + COMPLEXITY_OFFSET) / (REFERENCE_COMPLEXITY + COMPLEXITY_OFFSET);
+    }
+
+    /**
+     * 计算图片的复杂度：均匀取样的点和右边、下边相邻的点之间的平均亮度差（0~255）
+     */
+    static float complexity(Bitmap bitmap) {
+        Complexity complexity = new Complexity();
+        if (PixelSampler.sample(bitmap, SAMPLE_COUNT, SAMPLE_COUNT, complexity) == 0) {
+            return REFERENCE_COMPLEXITY;
+        }
+        return (float) complexity.mSum / complexity.mCount;
+    }
+
+    /**
+     * 累加采样点和右边、下边的点的亮度差
+     */
+    private static final class Complexity implements PixelSampler.Visitor {
+        long mSum;
+        int mCount;
+
+        @Override
+        public void visit(int color, int right, int below) {
+            int luma = PixelSampler.luma(color);
+            mSum += Math.abs(luma - PixelSampler.luma(right)) + Math.abs(luma - PixelSampler.luma(below));
+            mCount += 2;
+        }
+    }
+
+    private void load(String saved) {
+        if (saved == null) {
+            return;
+        }
+        String[] values = saved.split(",");
+        if (values.length != mBytesPerPixel.length) {
+            return;
+        }
+        float[] loaded = new float[values.length];
+        try {
+            for (int i = 0; i < values.length; i++) {
+                loaded[i] = Float.parseFloat(values[i]);
+                if (!(loaded[i] > 0)) {
+                    return;
+                }
+            }
+        } catch (NumberFormatException e) {
+            return;
+        }
+        System.arraycopy(loaded, 0, mBytesPerPixel, 0, loaded.length);
+    }
+}
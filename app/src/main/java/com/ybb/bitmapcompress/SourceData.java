@@ -0,0 +1,365 @@
+package com.ybb.bitmapcompress;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * 一个压缩任务要压缩的图片：文件、Uri或者输入流
+ * <p>
+ * 读取图片信息和解码都需要读取文件，原来每一步都要重新打开一次文件，在比较慢的存储上每次打开都有明显的耗时。
+ * 这里第一次用到文件内容的时候把整个文件读到内存里，读取文件头和解码都直接使用这份数据，一个任务只读取一次文件。
+ * 读取图片信息命中缓存并且不需要压缩的时候，不会读取文件。
+ * <p>
+ * 文件太大的时候不读到内存里，读取文件头和解码仍然直接读取文件，避免占用太多的内存。
+ * <p>
+ * Uri不需要先查询媒体库得到文件路径（云端的图片根本没有路径）：
+ * 能打开可以随机读取的文件描述符的时候和文件一样处理，不复制；
+ * 只能顺序读取的时候（管道、输入流）读到内存里，超过 {@link #MAX_BUFFERED_SIZE} 的时候才写入一个临时文件。
+ */
+final class SourceData {
+
+    /**
+     * 最多把多大的文件读到内存里
+     */
+    static final long MAX_BUFFERED_SIZE = Math.min(16 * 1024 * 1024, Runtime.getRuntime().maxMemory() / 32);
+    private static final int COPY_BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * 要压缩的文件，或者只能顺序读取的图片写入的临时文件
+     */
+    private File mFile;
+    /**
+     * mFile是临时文件，释放的时候删除
+     */
+    private boolean mTemporary;
+    /**
+     * 可以随机读取的文件描述符
+     */
+    private ParcelFileDescriptor mDescriptor;
+    private long mLength;
+    private byte[] mData;
+
+    SourceData(File file) {
+        mFile = file;
+        mLength = file.length();
+    }
+
+    private SourceData() {
+    }
+
+    /**
+     * 打开Uri，只能顺序读取的时候才会读取全部内容
+     *
+     * @param store 分配临时文件，见 {@link OutputStore#newTempFile()}
+     */
+    static SourceData open(Context context, Uri uri, OutputStore store) throws IOException {
+        if (ContentResolver.SCHEME_FILE.equals(uri.getScheme()) && uri.getPath() != null) {
+            return new SourceData(new File(uri.getPath()));
+        }
+        ContentResolver resolver = context.getContentResolver();
+        ParcelFileDescriptor descriptor;
+        try {
+            descriptor = resolver.openFileDescriptor(uri, "r");
+        } catch (FileNotFoundException e) {
+            //有些ContentProvider只支持打开输入流
+            descriptor = null;
+        }
+        if (descriptor != null) {
+            if (descriptor.getStatSize() >= 0) {
+                SourceData source = new SourceData();
+                source.mDescriptor = descriptor;
+                source.mLength = descriptor.getStatSize();
+                return source;
+            }
+            //管道只能顺序读取一次
+            return read(new ParcelFileDescriptor.AutoCloseInputStream(descriptor), store);
+        }
+        InputStream in = resolver.openInputStream(uri);
+        if (in == null) {
+            throw new FileNotFoundException("无法打开 " + uri);
+        }
+        return read(in, store);
+    }
+
+    /**
+     * 读取输入流的全部内容，不超过 {@link #MAX_BUFFERED_SIZE} 的时候只保存在内存里，否则写入一个临时文件。
+     * 读完以后关闭输入流
+     *
+     * @param store 分配临时文件，见 {@link OutputStore#newTempFile()}
+     */
+    static SourceData read(InputStream in, OutputStore store) throws IOException {
+        try {
+            byte[] data = new byte[COPY_BUFFER_SIZE];
+            int length = 0;
+            while (true) {
+                int n = in.read(data, length, data.length - length);
+                if (n < 0) {
+                    SourceData source = new SourceData();
+                    source.mData = length == data.length ? data : Arrays.copyOf(data, length);
+                    source.mLength = length;
+                    return source;
+                }
+                length += n;
+                if (length == data.length) {
+                    if (length > MAX_BUFFERED_SIZE) {
+                        return spill(data, length, in, store);
+                    }
+                    data = Arrays.copyOf(data, (int) Math.min((long) data.length * 2, MAX_BUFFERED_SIZE + 1));
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * 太大的图片写入临时文件，已经读到内存里的部分先写入
+     */
+    private static SourceData spill(byte[] head, int length, InputStream in, OutputStore store) throws IOException {
+        File file = store.newTempFile();
+        OutputStream out = new FileOutputStream(file);
+        boolean success = false;
+        try {
+            out.write(head, 0, length);
+            copy(in, out);
+            out.close();
+            success = true;
+        } finally {
+            if (!success) {
+                closeQuietly(out);
+                file.delete();
+            }
+        }
+        SourceData source = new SourceData(file);
+        source.mTemporary = true;
+        return source;
+    }
+
+    /**
+     * 要压缩的文件，不是文件或者是临时文件的时候为null
+     */
+    File getFile() {
+        return mTemporary ? null : mFile;
+    }
+
+    long length() {
+        return mLength;
+    }
+
+    /**
+     * 长度为length的图片读到内存里以后占用多少字节，太大不读到内存里的时候为0。
+     * 压缩计划按这个值估算内存，见 {@link CompressPlan#sourceBytes}
+     */
+    static long bufferedLength(long length) {
+        return length > 0 && length <= MAX_BUFFERED_SIZE ? length : 0;
+    }
+
+    /**
+     * 文件内容是否会读到内存里
+     */
+    boolean isBuffered() {
+        return mData != null || bufferedLength(mLength) > 0;
+    }
+
+    /**
+     * 文件的内容，第一次调用的时候读取文件
+     *
+     * @throws IllegalStateException 文件太大，见 {@link #isBuffered()}
+     */
+    byte[] data() throws IOException {
+        if (mData != null) {
+            return mData;
+        }
+        if (!isBuffered()) {
+            throw new IllegalStateException("file is too large to be buffered: " + mLength);
+        }
+        byte[] data = new byte[(int) mLength];
+        if (mDescriptor != null) {
+            FileChannel channel = channel();
+            int length = 0;
+            while (length < data.length) {
+                int n = channel.read(ByteBuffer.wrap(data, length, data.length - length), length);
+                if (n < 0) {
+                    throw new IOException("unexpected end of file");
+                }
+                length += n;
+            }
+        } else {
+            RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+            try {
+                raf.readFully(data);
+            } finally {
+                raf.close();
+            }
+        }
+        mData = data;
+        return mData;
+    }
+
+    /**
+     * 按位置读取文件描述符的通道，不会改变描述符的读取位置，也不能关闭（会关闭描述符）
+     */
+    private FileChannel channel() {
+        return new FileInputStream(mDescriptor.getFileDescriptor()).getChannel();
+    }
+
+    /**
+     * 读取图片的信息，只有没有命中缓存的时候才会读取文件
+     */
+    ImageProbe probe() {
+        return ImageProbe.probe(this);
+    }
+
+    /**
+     * 读取文件头
+     *
+     * @return 无法识别的格式返回null
+     */
+    ImageHeader readHeader() throws IOException {
+        if (isBuffered()) {
+            byte[] data = data();
+            ImageHeader header = ImageHeader.parse(data, data.length, true);
+            return ImageHeader.isIncomplete(header) ? null : header;
+        }
+        if (mDescriptor != null) {
+            return ImageHeader.read(channel());
+        }
+        return ImageHeader.read(mFile);
+    }
+
+    /**
+     * 解码图片
+     *
+     * @return 无法解码的时候返回null
+     */
+    Bitmap decode(BitmapFactory.Options options) throws CompressException {
+        if (!isBuffered()) {
+            if (mDescriptor != null) {
+                return BitmapFactory.decodeFileDescriptor(mDescriptor.getFileDescriptor(), null, options);
+            }
+            return BitmapFactory.decodeFile(mFile.getAbsolutePath(), options);
+        }
+        byte[] data;
+        try {
+            data = data();
+        } catch (IOException e) {
+            throw new CompressException(e.getMessage(), e);
+        }
+        return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+    }
+
+    /**
+     * 创建分块解码器，见 {@link TiledDecoder}
+     */
+    BitmapRegionDecoder newRegionDecoder() throws IOException {
+        if (!isBuffered()) {
+            if (mDescriptor != null) {
+                return BitmapRegionDecoder.newInstance(mDescriptor.getFileDescriptor(), false);
+            }
+            return BitmapRegionDecoder.newInstance(mFile.getAbsolutePath(), false);
+        }
+        byte[] data = data();
+        return BitmapRegionDecoder.newInstance(data, 0, data.length, false);
+    }
+
+    /**
+     * 不需要压缩的时候把原图复制到file
+     */
+    void copyTo(File file) throws IOException {
+        if (mTemporary && mFile.renameTo(file)) {
+            mFile = file;
+            mTemporary = false;
+            return;
+        }
+        OutputStream out = new FileOutputStream(file);
+        try {
+            copyTo(out);
+            out.close();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * 不需要压缩的时候把原图写入out，不会关闭out。还没有读到内存里的文件不会整个读到内存里
+     */
+    void copyTo(OutputStream out) throws IOException {
+        if (mData != null) {
+            out.write(mData);
+            return;
+        }
+        if (mDescriptor != null) {
+            //不能关闭，会关闭文件描述符
+            copy(Channels.newInputStream(channel().position(0)), out);
+            return;
+        }
+        InputStream in = new FileInputStream(mFile);
+        try {
+            copy(in, out);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * 解码完成以后释放文件内容，关闭文件描述符，删除临时文件
+     */
+    void release() {
+        mData = null;
+        if (mDescriptor != null) {
+            try {
+                mDescriptor.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mDescriptor = null;
+        }
+        if (mTemporary) {
+            mFile.delete();
+            mTemporary = false;
+        }
+    }
+
+    /**
+     * 把输入流剩下的内容写入输出流，不关闭两个流
+     */
+    static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+    }
+
+    /**
+     * 关闭写入失败的输出流，out为null的时候什么也不做
+     */
+    static void closeQuietly(OutputStream out) {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
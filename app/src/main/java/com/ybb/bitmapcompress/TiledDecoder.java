@@ -0,0 +1,118 @@
+package com.ybb.bitmapcompress;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Build;
+
+/**
+ * 分块解码特别大的图片
+ * <p>
+ * 全景图、几万像素长的截图按整张解码的时候，解码出来的图片和缩放、旋转以后的图片同时存在，要占用几百兆内存。
+ * 这里用 {@link BitmapRegionDecoder} 沿着长边把原图切成一条一条的，每次只解码一条，
+ * 缩放、旋转以后直接画到结果上，所以除了结果以外同时只存在一条，占用的内存和原图的大小无关。
+ */
+final class TiledDecoder {
+
+    /**
+     * 每一条解码以后最多占用多少内存，至少解码一行（或一列）
+     */
+    static final int TILE_BYTES = 4 * 1024 * 1024;
+
+    private TiledDecoder() {
+    }
+
+    /**
+     * 只有JPEG和PNG可以分块解码
+     */
+    static boolean supports(String mimeType) {
+        return ImageHeader.MIME_JPEG.equals(mimeType) || ImageHeader.MIME_PNG.equals(mimeType);
+    }
+
+    /**
+     * 分块解码，把每一条按matrix画到dst上
+     *
+     * @param decoder    原图的分块解码器
+     * @param sampleSize 每一条的采样率
+     * @param config     每一条的颜色格式，为null的时候使用ARGB_8888
+     * @param dst        结果
+     * @param matrix     从原图的坐标到结果的坐标的变换
+     * @param pool       每一条都从图片池里取，用完放回去
+     * @return 有一条无法解码的时候返回false
+     */
+    static boolean decode(BitmapRegionDecoder decoder, int sampleSize, Bitmap.Config config, Bitmap dst,
+                       Matrix matrix, BitmapPool pool) {
+        int width = decoder.getWidth();
+        int height = decoder.getHeight();
+        int bytesPerPixel = config == Bitmap.Config.RGB_565 ? 2 : 4;
+        //沿着长边切，每一条都横跨短边
+        boolean vertical = width >= height;
+        int across = vertical ? height : width;
+        int along = vertical ? width : height;
+        long lineBytes = (long) ((across + sampleSize - 1) / sampleSize) * bytesPerPixel;
+        int step = (int) Math.max(1, TILE_BYTES / lineBytes) * sampleSize;
+
+        Canvas canvas = new Canvas(dst);
+        Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG);
+        Matrix tileMatrix = new Matrix();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        if (config != null) {
+            options.inPreferredConfig = config;
+        }
+        boolean reuse = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+        try {
+            for (int start = 0; start < along; start += step) {
+                int end = Math.min(along, start + step);
+                Rect region = vertical ? new Rect(start, 0, end, height) : new Rect(0, start, width, end);
+                options.inBitmap = null;
+                if (reuse) {
+                    pool.prepareDecode(options, (region.width() + sampleSize - 1) / sampleSize,
+                            (region.height() + sampleSize - 1) / sampleSize);
+                }
+                Bitmap tile = decodeRegion(decoder, region, options, pool);
+                if (tile == null) {
+                    return false;
+                }
+                try {
+                    //条上的像素 -> 原图的坐标 -> 结果的坐标
+                    tileMatrix.set(matrix);
+                    tileMatrix.preTranslate(region.left, region.top);
+                    tileMatrix.preScale((float) region.width() / tile.getWidth(),
+                            (float) region.height() / tile.getHeight());
+                    canvas.drawBitmap(tile, tileMatrix, paint);
+                } finally {
+                    pool.put(tile);
+                }
+            }
+        } finally {
+            canvas.setBitmap(null);
+        }
+        return true;
+    }
+
+    private static Bitmap decodeRegion(BitmapRegionDecoder decoder, Rect region, BitmapFactory.Options options,
+                                       BitmapPool pool) {
+        Bitmap inBitmap = options.inBitmap;
+        if (inBitmap == null) {
+            return decoder.decodeRegion(region, options);
+        }
+        Bitmap tile;
+        try {
+            tile = decoder.decodeRegion(region, options);
+        } catch (IllegalArgumentException e) {
+            tile = null;
+        }
+        if (tile != null) {
+            return tile;
+        }
+        //复用的图片不合适，重新分配一张
+        pool.put(inBitmap);
+        options.inBitmap = null;
+        return decoder.decodeRegion(region, options);
+    }
+}
@@ -0,0 +1,85 @@
+package com.ybb.bitmapcompress;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link ImageContent} 的单元测试，用生成的图片代替照片和截图
+ */
+public class ImageContentTest {
+
+    private static final int WIDTH = 360;
+    private static final int HEIGHT = 640;
+
+    /**
+     * 平滑的渐变加上噪点，和照片一样几乎没有完全相同的相邻的点
+     */
+    private static int[] photo() {
+        Random random = new Random(1);
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int noise = random.nextInt(9) - 4;
+                int r = clamp(x * 255 / WIDTH + noise);
+                int g = clamp(y * 255 / HEIGHT + noise);
+                int b = clamp(128 + noise);
+                pixels[y * WIDTH + x] = argb(0xff, r, g, b);
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * 白色的背景、蓝色的标题栏和一行行黑色的“文字”
+     */
+    private static int[] screenshot() {
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int color = 0xffffffff;
+                if (y < 48) {
+                    color = 0xff3f51b5;
+                } else if (y % 24 < 12 && x % 9 < 5 && x > 16 && x < WIDTH - 16) {
+                    color = 0xff212121;
+                }
+                pixels[y * WIDTH + x] = color;
+            }
+        }
+        return pixels;
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+
+    private static int argb(int a, int r, int g, int b) {
+        return a << 24 | r << 16 | g << 8 | b;
+    }
+
+    @Test
+    public void photoIsNotGraphic() {
+        ImageContent content = ImageContent.classify(photo(), WIDTH, HEIGHT);
+        assertFalse(content.toString(), content.isGraphic());
+        assertFalse(content.hasAlpha());
+    }
+
+    @Test
+    public void screenshotIsGraphic() {
+        ImageContent content = ImageContent.classify(screenshot(), WIDTH, HEIGHT);
+        assertTrue(content.toString(), content.isGraphic());
+        assertTrue(content.getColorCount() <= 3);
+    }
+
+    @Test
+    public void transparentPixels() {
+        int[] pixels = screenshot();
+        for (int i = 0; i < WIDTH * 48; i++) {
+            pixels[i] &= 0x00ffffff;
+        }
+        assertTrue(ImageContent.classify(pixels, WIDTH, HEIGHT).hasAlpha());
+    }
+}
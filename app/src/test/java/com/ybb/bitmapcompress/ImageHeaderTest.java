@@ -0,0 +1,430 @@
+package com.ybb.bitmapcompress;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link ImageHeader} 的单元测试，用手工拼出来的文件头代替真正的图片
+ */
+public class ImageHeaderTest {
+
+    private static void u16be(ByteArrayOutputStream out, int v) {
+        out.write(v >> 8);
+        out.write(v);
+    }
+
+    private static void u16le(ByteArrayOutputStream out, int v) {
+        out.write(v);
+        out.write(v >> 8);
+    }
+
+    private static void u32le(ByteArrayOutputStream out, long v) {
+        u16le(out, (int) (v & 0xFFFF));
+        u16le(out, (int) (v >> 16));
+    }
+
+    private static void ascii(ByteArrayOutputStream out, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            out.write(s.charAt(i));
+        }
+    }
+
+    /**
+     * TIFF格式的EXIF，IFD0里有一个无关的标签和方向
+     */
+    private static byte[] tiff(boolean little, int orientation) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ascii(out, little ? "II" : "MM");
+        if (little) {
+            u16le(out, 42);
+            u32le(out, 8);
+            u16le(out, 2);
+            //ImageWidth
+            u16le(out, 0x0100);
+            u16le(out, 3);
+            u32le(out, 1);
+            u32le(out, 4000);
+            u16le(out, 0x0112);
+            u16le(out, 3);
+            u32le(out, 1);
+            u16le(out, orientation);
+            u16le(out, 0);
+        } else {
+            u16be(out, 42);
+            u16be(out, 0);
+            u16be(out, 8);
+            u16be(out, 2);
+            u16be(out, 0x0100);
+            u16be(out, 3);
+            u16be(out, 0);
+            u16be(out, 1);
+            u16be(out, 4000);
+            u16be(out, 0);
+            u16be(out, 0x0112);
+            u16be(out, 3);
+            u16be(out, 0);
+            u16be(out, 1);
+            u16be(out, orientation);
+            u16be(out, 0);
+        }
+        u32le(out, 0);
+        return out.toByteArray();
+    }
+
+    private static void segment(ByteArrayOutputStream out, int marker, byte[] body) {
+        out.write(0xFF);
+        out.write(marker);
+        u16be(out, body.length + 2);
+        out.write(body, 0, body.length);
+    }
+
+    private static byte[] jpeg(int width, int height, byte[] exif, int padding) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xFF);
+        out.write(0xD8);
+        segment(out, 0xE0, "JFIF\0\1\1\0\0\1\0\1\0\0".getBytes());
+        if (exif != null) {
+            ByteArrayOutputStream app1 = new ByteArrayOutputStream();
+            ascii(app1, "Exif");
+            app1.write(0);
+            app1.write(0);
+            app1.write(exif, 0, exif.length);
+            //EXIF里的缩略图
+            app1.write(new byte[padding], 0, padding);
+            segment(out, 0xE1, app1.toByteArray());
+        }
+        segment(out, 0xDB, new byte[65]);
+        //标记前面的填充字节
+        out.write(0xFF);
+        ByteArrayOutputStream sof = new ByteArrayOutputStream();
+        sof.write(8);
+        u16be(sof, height);
+        u16be(sof, width);
+        sof.write(3);
+        sof.write(new byte[9], 0, 9);
+        segment(out, 0xC2, sof.toByteArray());
+        segment(out, 0xDA, new byte[10]);
+        out.write(new byte[100], 0, 100);
+        return out.toByteArray();
+    }
+
+    private static ImageHeader parse(byte[] data) {
+        return ImageHeader.parse(data, data.length);
+    }
+
+    private static void assertHeader(ImageHeader header, int width, int height, String mime, int orientation) {
+        assertEquals(width, header.width);
+        assertEquals(height, header.height);
+        assertEquals(mime, header.mimeType);
+        assertEquals(orientation, header.orientation);
+    }
+
+    @Test
+    public void jpegWithExifOrientation() throws Exception {
+        assertHeader(parse(jpeg(4000, 3000, tiff(false, 6), 0)), 4000, 3000, ImageHeader.MIME_JPEG, 90);
+        assertHeader(parse(jpeg(4000, 3000, tiff(true, 8), 0)), 4000, 3000, ImageHeader.MIME_JPEG, 270);
+        assertHeader(parse(jpeg(640, 480, tiff(true, 3), 0)), 640, 480, ImageHeader.MIME_JPEG, 180);
+        //镜像的方向和原来的做法一样不旋转
+        assertHeader(parse(jpeg(640, 480, tiff(true, 2), 0)), 640, 480, ImageHeader.MIME_JPEG, 0);
+    }
+
+    @Test
+    public void jpegWithoutExif() throws Exception {
+        assertHeader(parse(jpeg(1080, 1920, null, 0)), 1080, 1920, ImageHeader.MIME_JPEG, 0);
+    }
+
+    @Test
+    public void truncatedJpegNeedsMoreData() throws Exception {
+        byte[] data = jpeg(4000, 3000, tiff(false, 6), 0);
+        assertTrue(ImageHeader.isIncomplete(ImageHeader.parse(data, 40)));
+    }
+
+    @Test
+    public void jpegWithoutFrameIsRejected() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xFF);
+        out.write(0xD8);
+        segment(out, 0xDA, new byte[10]);
+        assertNull(parse(out.toByteArray()));
+    }
+
+    @Test
+    public void png() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(new byte[]{(byte) 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A}, 0, 8);
+        u16be(out, 0);
+        u16be(out, 13);
+        ascii(out, "IHDR");
+        u16be(out, 0);
+        u16be(out, 1242);
+        u16be(out, 0);
+        u16be(out, 2688);
+        out.write(new byte[9], 0, 9);
+        assertHeader(parse(out.toByteArray()), 1242, 2688, ImageHeader.MIME_PNG, 0);
+    }
+
+    private static byte[] webp(String chunk, byte[] body, byte[] extra) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ascii(out, "RIFF");
+        u32le(out, 0);
+        ascii(out, "WEBP");
+        ascii(out, chunk);
+        u32le(out, body.length);
+        out.write(body, 0, body.length);
+        if (extra != null) {
+            out.write(extra, 0, extra.length);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void webpLossy() throws Exception {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(new byte[3], 0, 3);
+        body.write(new byte[]{(byte) 0x9D, 0x01, 0x2A}, 0, 3);
+        u16le(body, 800);
+        u16le(body, 600);
+        assertHeader(parse(webp("VP8 ", body.toByteArray(), null)), 800, 600, ImageHeader.MIME_WEBP, 0);
+    }
+
+    @Test
+    public void webpLossless() throws Exception {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(0x2F);
+        u32le(body, (1023 - 1) | ((long) (767 - 1) << 14));
+        assertHeader(parse(webp("VP8L", body.toByteArray(), null)), 1023, 767, ImageHeader.MIME_WEBP, 0);
+    }
+
+    @Test
+    public void webpExtendedWithExif() throws Exception {
+        ByteArrayOutputStream vp8x = new ByteArrayOutputStream();
+        vp8x.write(0x08);
+        vp8x.write(new byte[3], 0, 3);
+        //宽高减1，各24位
+        vp8x.write(new byte[]{(byte) 0x9F, 0x0F, 0x00, (byte) 0xB7, 0x0B, 0x00}, 0, 6);
+        ByteArrayOutputStream rest = new ByteArrayOutputStream();
+        ascii(rest, "VP8L");
+        u32le(rest, 5);
+        rest.write(0x2F);
+        rest.write(new byte[5], 0, 5);
+        byte[] exif = tiff(true, 6);
+        ascii(rest, "EXIF");
+        u32le(rest, exif.length);
+        rest.write(exif, 0, exif.length);
+        byte[] data = webp("VP8X", vp8x.toByteArray(), rest.toByteArray());
+        assertHeader(parse(data), 4000, 3000, ImageHeader.MIME_WEBP, 90);
+        //EXIF块还没有读到
+        assertTrue(ImageHeader.isIncomplete(ImageHeader.parse(data, data.length - 4)));
+        //已经没有更多的数据的时候不丢掉已经读到的宽高
+        assertHeader(ImageHeader.parse(data, data.length - 4, true), 4000, 3000, ImageHeader.MIME_WEBP, 0);
+    }
+
+    @Test
+    public void webpExifBeyondReadLimit() throws Exception {
+        ByteArrayOutputStream vp8x = new ByteArrayOutputStream();
+        vp8x.write(0x08);
+        vp8x.write(new byte[3], 0, 3);
+        vp8x.write(new byte[]{(byte) 0x9F, 0x0F, 0x00, (byte) 0xB7, 0x0B, 0x00}, 0, 6);
+        //图像数据比最多读取的长度还大，EXIF块在后面读不到
+        ByteArrayOutputStream rest = new ByteArrayOutputStream();
+        int imageSize = ImageHeader.MAX_READ + 1024;
+        ascii(rest, "VP8L");
+        u32le(rest, imageSize);
+        rest.write(0x2F);
+        rest.write(new byte[imageSize - 1], 0, imageSize - 1);
+        File file = File.createTempFile("header", ".webp");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(webp("VP8X", vp8x.toByteArray(), rest.toByteArray()));
+            } finally {
+                out.close();
+            }
+            assertHeader(ImageHeader.read(file), 4000, 3000, ImageHeader.MIME_WEBP, 0);
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * 报告的大小比实际的文件大，就像在读取的过程中文件变短了
+     */
+    private static final class ShrunkChannel extends FileChannel {
+        private final FileChannel mChannel;
+
+        ShrunkChannel(FileChannel channel) {
+            mChannel = channel;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return mChannel.size() + 10 * 1024 * 1024;
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return mChannel.read(dst, position);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return mChannel.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return mChannel.read(dsts, offset, length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            throw new IOException("read only");
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            throw new IOException("read only");
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            throw new IOException("read only");
+        }
+
+        @Override
+        public long position() throws IOException {
+            return mChannel.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            mChannel.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            throw new IOException("read only");
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return mChannel.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            throw new IOException("read only");
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return mChannel.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return mChannel.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return mChannel.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            mChannel.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void stopsWhenFileShrinks() throws Exception {
+        //文件头说后面还有数据，但是文件在这之前就结束了，读不到更多的数据的时候不能一直重试
+        byte[] data = jpeg(4000, 3000, null, 0);
+        File file = File.createTempFile("header", ".jpg");
+        RandomAccessFile raf = null;
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(data, 0, 40);
+            } finally {
+                out.close();
+            }
+            raf = new RandomAccessFile(file, "r");
+            assertNull(ImageHeader.read(new ShrunkChannel(raf.getChannel())));
+        } finally {
+            if (raf != null) {
+                raf.close();
+            }
+            file.delete();
+        }
+    }
+
+    @Test
+    public void unknownFormat() throws Exception {
+        assertNull(parse("GIF89a........".getBytes()));
+        assertNull(parse(new byte[0]));
+    }
+
+    @Test
+    public void readsMoreWhenFrameIsFarAway() throws Exception {
+        File file = File.createTempFile("header", ".jpg");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(jpeg(4000, 3000, tiff(true, 6), 60 * 1024));
+            } finally {
+                out.close();
+            }
+            assertHeader(ImageHeader.read(file), 4000, 3000, ImageHeader.MIME_JPEG, 90);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void readFromChannelKeepsPosition() throws Exception {
+        File file = File.createTempFile("header", ".jpg");
+        RandomAccessFile raf = null;
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(jpeg(4000, 3000, tiff(false, 8), 60 * 1024));
+            } finally {
+                out.close();
+            }
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            channel.position(7);
+            //从Uri打开的文件描述符也要按位置读取，不能改变解码时的读取位置
+            assertHeader(ImageHeader.read(channel), 4000, 3000, ImageHeader.MIME_JPEG, 270);
+            assertEquals(7, channel.position());
+            assertTrue(channel.isOpen());
+        } finally {
+            if (raf != null) {
+                raf.close();
+            }
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.ybb.bitmapcompress;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * {@link MemoryBudget} 的单元测试
+ */
+public class MemoryBudgetTest {
+
+    @Test
+    public void sampleSizeFitsBudget() throws Exception {
+        //8000x6000的ARGB_8888需要183M
+        assertEquals(1, MemoryBudget.sampleSizeFor(8000, 6000, 4, 200L << 20));
+        assertEquals(2, MemoryBudget.sampleSizeFor(8000, 6000, 4, 64L << 20));
+        assertEquals(4, MemoryBudget.sampleSizeFor(8000, 6000, 4, 32L << 20));
+        assertEquals(2, MemoryBudget.sampleSizeFor(8000, 6000, 2, 32L << 20));
+    }
+
+    @Test
+    public void sampleSizeStopsAtOnePixel() throws Exception {
+        assertEquals(8, MemoryBudget.sampleSizeFor(5, 8, 4, 0));
+    }
+
+    @Test
+    public void singleJobLargerThanCapacityRunsAlone() throws Exception {
+        MemoryBudget budget = new MemoryBudget(100);
+        assertEquals(100, budget.tryAcquire(500));
+        assertEquals(-1, budget.tryAcquire(1));
+        budget.release(100);
+        assertEquals(30, budget.tryAcquire(30));
+        assertEquals(70, budget.tryAcquire(70));
+    }
+}
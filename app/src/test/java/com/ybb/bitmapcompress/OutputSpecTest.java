@@ -0,0 +1,33 @@
+package com.ybb.bitmapcompress;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * {@link OutputSpec} 的单元测试
+ */
+public class OutputSpecTest {
+
+    @Test
+    public void fitsLongAndShortSide() throws Exception {
+        assertArrayEquals(new int[]{1280, 960}, new OutputSpec.Builder().maxSize(1280, 1280).build().fit(4000, 3000));
+        OutputSpec spec = new OutputSpec.Builder().maxSize(1280, 720).build();
+        assertArrayEquals(new int[]{720, 1280}, spec.fit(1080, 1920));
+        //长边缩小到1280以后短边还超过720
+        assertArrayEquals(new int[]{960, 720}, spec.fit(4000, 3000));
+    }
+
+    @Test
+    public void neverScalesUp() throws Exception {
+        OutputSpec spec = new OutputSpec.Builder().maxSize(1280, 720).build();
+        assertArrayEquals(new int[]{640, 480}, spec.fit(640, 480));
+        assertArrayEquals(new int[]{4000, 3000}, new OutputSpec.Builder().build().fit(4000, 3000));
+    }
+
+    @Test
+    public void keepsAtLeastOnePixel() throws Exception {
+        OutputSpec spec = new OutputSpec.Builder().maxSize(320, 0).build();
+        assertArrayEquals(new int[]{320, 1}, spec.fit(60000, 10));
+    }
+}
@@ -0,0 +1,66 @@
+package com.ybb.bitmapcompress;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * {@link OutputStore} 的单元测试
+ */
+public class OutputStoreTest {
+
+    private static final long NOW = 100L * 24 * 60 * 60 * 1000;
+    private static final long HOUR = 60 * 60 * 1000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void deletesOldestFilesOverCount() throws Exception {
+        File a = file("a.jpg", 10, NOW - 3 * HOUR);
+        File b = file("b.jpg", 10, NOW - 2 * HOUR);
+        File c = file("c.jpg", 10, NOW - HOUR);
+        List<File> expired = OutputStore.select(new File[]{c, a, b}, NOW, Long.MAX_VALUE, 1, Long.MAX_VALUE);
+        assertEquals(Arrays.asList(a, b), expired);
+    }
+
+    @Test
+    public void deletesFilesOverBytesAndAge() throws Exception {
+        File old = file("old.jpg", 10, NOW - 30 * 24 * HOUR);
+        File big = file("big.jpg", 100, NOW - 2 * HOUR);
+        File small = file("small.jpg", 10, NOW - HOUR);
+        List<File> expired = OutputStore.select(new File[]{old, big, small}, NOW, 50, Integer.MAX_VALUE,
+                7 * 24 * HOUR);
+        assertEquals(Arrays.asList(old, big), expired);
+    }
+
+    @Test
+    public void keepsRecentFilesAndDeletesStaleTempFiles() throws Exception {
+        File fresh = file("fresh.jpg", 100, NOW - 60 * 1000);
+        File writing = file("writing.jpg.tmp", 100, NOW - 60 * 1000);
+        File crashed = file("crashed.jpg.tmp", 100, NOW - HOUR);
+        List<File> expired = OutputStore.select(new File[]{fresh, writing, crashed}, NOW, 0, 0, 0);
+        assertEquals(Collections.singletonList(crashed), expired);
+    }
+
+    private File file(String name, int length, long lastModified) throws IOException {
+        File file = mFolder.newFile(name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[length]);
+        } finally {
+            out.close();
+        }
+        file.setLastModified(lastModified);
+        return file;
+    }
+}
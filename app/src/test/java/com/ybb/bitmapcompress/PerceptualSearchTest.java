@@ -0,0 +1,104 @@
+package com.ybb.bitmapcompress;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link PerceptualSearch#ssim(int[], int[], int, int)} 和亮度平面缩小的单元测试
+ */
+public class PerceptualSearchTest {
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+
+    private static int[] gradient() {
+        int[] plane = new int[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                plane[y * WIDTH + x] = (x * 3 + y * 2 + (x * y) % 17) & 0xff;
+            }
+        }
+        return plane;
+    }
+
+    private static int[] withNoise(int[] plane, int amount, long seed) {
+        Random random = new Random(seed);
+        int[] noisy = new int[plane.length];
+        for (int i = 0; i < plane.length; i++) {
+            int v = plane[i] + random.nextInt(amount * 2 + 1) - amount;
+            noisy[i] = Math.max(0, Math.min(255, v));
+        }
+        return noisy;
+    }
+
+    @Test
+    public void identicalPlanesAreFullySimilar() throws Exception {
+        int[] plane = gradient();
+        assertEquals(1, PerceptualSearch.ssim(plane, plane.clone(), WIDTH, HEIGHT), 1e-9);
+    }
+
+    @Test
+    public void moreNoiseIsLessSimilar() throws Exception {
+        int[] plane = gradient();
+        double previous = 1;
+        for (int amount = 4; amount <= 64; amount *= 2) {
+            double ssim = PerceptualSearch.ssim(plane, withNoise(plane, amount, amount), WIDTH, HEIGHT);
+            assertTrue("noise " + amount + ": " + ssim, ssim < previous);
+            previous = ssim;
+        }
+        assertTrue(previous < 0.5);
+    }
+
+    @Test
+    public void brightnessShiftCostsLessThanNoise() throws Exception {
+        int[] plane = gradient();
+        int[] shifted = new int[plane.length];
+        for (int i = 0; i < plane.length; i++) {
+            shifted[i] = Math.min(255, plane[i] + 8);
+        }
+        double shift = PerceptualSearch.ssim(plane, shifted, WIDTH, HEIGHT);
+        double noise = PerceptualSearch.ssim(plane, withNoise(plane, 16, 1), WIDTH, HEIGHT);
+        assertTrue(shift > 0.95);
+        assertTrue(shift > noise);
+    }
+
+    /**
+     * 按采样率解码出来的ARGB像素，尺寸向上取整的时候比亮度平面多一行一列
+     */
+    private static int[] decoded(int width, int height) {
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int v = (x * 5 + y * 3 + (x * y) % 23) & 0xff;
+                pixels[y * width + x] = 0xff000000 | v << 16 | (255 - v) << 8 | (v / 2);
+            }
+        }
+        return pixels;
+    }
+
+    @Test
+    public void samePixelsGiveSamePlane() throws Exception {
+        //参考和候选的解码结果相同的时候，缩小以后的平面也必须完全相同，SSIM为1
+        int[] reference = new int[WIDTH * HEIGHT];
+        int[] candidate = new int[WIDTH * HEIGHT];
+        PerceptualSearch.lumaPlane(decoded(WIDTH + 1, HEIGHT + 1), WIDTH + 1, HEIGHT + 1, reference, WIDTH, HEIGHT);
+        PerceptualSearch.lumaPlane(decoded(WIDTH + 1, HEIGHT + 1), WIDTH + 1, HEIGHT + 1, candidate, WIDTH, HEIGHT);
+        assertArrayEquals(reference, candidate);
+        assertEquals(1, PerceptualSearch.ssim(reference, candidate, WIDTH, HEIGHT), 1e-9);
+    }
+
+    @Test
+    public void planeWithoutScalingIsLuma() throws Exception {
+        int[] pixels = decoded(WIDTH, HEIGHT);
+        int[] plane = new int[WIDTH * HEIGHT];
+        PerceptualSearch.lumaPlane(pixels, WIDTH, HEIGHT, plane, WIDTH, HEIGHT);
+        for (int i = 0; i < pixels.length; i++) {
+            assertEquals(PixelSampler.luma(pixels[i]), plane[i]);
+        }
+    }
+}
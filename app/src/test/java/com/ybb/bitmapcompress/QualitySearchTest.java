@@ -0,0 +1,189 @@
+package com.ybb.bitmapcompress;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link QualitySearch} 的单元测试，用一个大小随质量增长的假编码器代替真正的JPEG编码
+ */
+public class QualitySearchTest {
+
+    /**
+     * 和JPEG类似：质量越高文件越大，并且越接近100增长得越快
+     */
+    private static class FakeEncoder implements QualitySearch.Encoder {
+        final AtomicInteger count = new AtomicInteger();
+
+        static int sizeOf(int quality) {
+            return 20 * 1024 + quality * quality * 40;
+        }
+
+        @Override
+        public void encode(int quality, OutputStream out) {
+            count.incrementAndGet();
+            try {
+                out.write(new byte[sizeOf(quality)]);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    private static int highestFitting(long target) {
+        int quality = -1;
+        for (int q = 0; q <= 100; q++) {
+            if (FakeEncoder.sizeOf(q) <= target) quality = q;
+        }
+        return quality;
+    }
+
+    @Test
+    public void returnsStartQualityWhenItFits() throws Exception {
+        FakeEncoder encoder = new FakeEncoder();
+        QualitySearch.Result result = QualitySearch.DEFAULT.search(encoder, 1024 * 1024, 100);
+        assertEquals(100, result.getQuality());
+        assertEquals(1, encoder.count.get());
+        assertTrue(result.fits());
+    }
+
+    @Test
+    public void findsHighestFittingQualityWithFewEncodes() throws Exception {
+        QualitySearch exact = new QualitySearch(0, 0f, 17);
+        for (long target = 25 * 1024; target < 420 * 1024; target += 7 * 1024) {
+            FakeEncoder encoder = new FakeEncoder();
+            QualitySearch.Result result = exact.search(encoder, target, 100);
+            assertEquals(highestFitting(target), result.getQuality());
+            assertEquals(FakeEncoder.sizeOf(result.getQuality()), result.size());
+            assertTrue("encodes: " + encoder.count.get(), encoder.count.get() <= 10);
+        }
+    }
+
+    @Test
+    public void stopsWithinTolerance() throws Exception {
+        int total = 0;
+        int count = 0;
+        for (long target = 25 * 1024; target < 420 * 1024; target += 7 * 1024) {
+            FakeEncoder encoder = new FakeEncoder();
+            QualitySearch.Result result = QualitySearch.DEFAULT.search(encoder, target, 100);
+            assertTrue(result.fits());
+            assertTrue(result.size() <= target);
+            //至少和原来每次降低6的做法一样接近目标大小
+            int stepped = 100;
+            while (FakeEncoder.sizeOf(stepped) > target) stepped -= 6;
+            assertTrue(result.size() >= Math.min(FakeEncoder.sizeOf(stepped), target * 0.95));
+            assertTrue("encodes: " + encoder.count.get(), encoder.count.get() <= QualitySearch.DEFAULT_MAX_ENCODES);
+            total += encoder.count.get();
+            count++;
+        }
+        assertTrue("average encodes: " + (float) total / count, total <= count * 5);
+    }
+
+    /**
+     * 按真实大小的factor倍估算
+     */
+    private static QualitySearch.SizeModel model(final double factor) {
+        return new QualitySearch.SizeModel() {
+            @Override
+            public double estimate(int quality) {
+                return FakeEncoder.sizeOf(quality) * factor;
+            }
+
+            @Override
+            public void onEncoded(int quality, int bytes) {
+            }
+        };
+    }
+
+    @Test
+    public void exactModelNeedsAboutOneEncode() throws Exception {
+        int total = 0;
+        int count = 0;
+        for (long target = 25 * 1024; target < 420 * 1024; target += 7 * 1024) {
+            FakeEncoder encoder = new FakeEncoder();
+            QualitySearch.Result result = QualitySearch.DEFAULT.search(encoder, target, 100, model(1));
+            assertTrue(result.fits());
+            assertTrue(result.size() >= Math.min(FakeEncoder.sizeOf(highestFitting(target)), target * 0.95));
+            //相邻两个质量的大小相差比较多的时候需要再试一次才能确定
+            assertTrue("encodes: " + encoder.count.get(), encoder.count.get() <= 2);
+            total += encoder.count.get();
+            count++;
+        }
+        assertTrue("average encodes: " + (float) total / count, total <= count * 1.25);
+    }
+
+    @Test
+    public void inaccurateModelStillStopsWithinTolerance() throws Exception {
+        for (double factor : new double[]{0.5, 0.8, 1.25, 2}) {
+            for (long target = 25 * 1024; target < 420 * 1024; target += 7 * 1024) {
+                FakeEncoder encoder = new FakeEncoder();
+                QualitySearch.Result result = QualitySearch.DEFAULT.search(encoder, target, 100, model(factor));
+                assertTrue(result.fits());
+                assertTrue(result.size() <= target);
+                assertEquals(FakeEncoder.sizeOf(result.getQuality()), result.size());
+                int stepped = 100;
+                while (FakeEncoder.sizeOf(stepped) > target) stepped -= 6;
+                assertTrue(result.size() >= Math.min(FakeEncoder.sizeOf(stepped), target * 0.95));
+                assertTrue("encodes: " + encoder.count.get(), encoder.count.get() <= 5);
+            }
+        }
+    }
+
+    @Test
+    public void parallelSearchStopsWithinTolerance() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            for (long target = 25 * 1024; target < 420 * 1024; target += 7 * 1024) {
+                FakeEncoder encoder = new FakeEncoder();
+                QualitySearch.Result result = QualitySearch.DEFAULT.search(encoder, target, 100, executor, 4);
+                assertTrue(result.fits());
+                assertTrue(result.size() <= target);
+                assertEquals(FakeEncoder.sizeOf(result.getQuality()), result.size());
+                int stepped = 100;
+                while (FakeEncoder.sizeOf(stepped) > target) stepped -= 6;
+                assertTrue(result.size() >= Math.min(FakeEncoder.sizeOf(stepped), target * 0.95));
+                assertTrue("encodes: " + encoder.count.get(),
+                        encoder.count.get() <= 4 * QualitySearch.MAX_PARALLEL_ROUNDS);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void parallelSearchRunsOnCallerWhenExecutorRejects() throws Exception {
+        Executor rejecting = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                throw new RejectedExecutionException();
+            }
+        };
+        FakeEncoder encoder = new FakeEncoder();
+        QualitySearch.Result result = QualitySearch.DEFAULT.search(encoder, 100 * 1024, 100, rejecting, 4);
+        assertTrue(result.fits());
+        assertEquals(FakeEncoder.sizeOf(result.getQuality()), result.size());
+
+        result = QualitySearch.DEFAULT.search(new FakeEncoder(), 1024, 100, rejecting, 4);
+        assertFalse(result.fits());
+        assertEquals(QualitySearch.DEFAULT_MIN_QUALITY, result.getQuality());
+    }
+
+    @Test
+    public void fallsBackToMinQualityWhenNothingFits() throws Exception {
+        FakeEncoder encoder = new FakeEncoder();
+        QualitySearch.Result result = QualitySearch.DEFAULT.search(encoder, 1024, 100);
+        assertFalse(result.fits());
+        assertEquals(QualitySearch.DEFAULT_MIN_QUALITY, result.getQuality());
+        assertEquals(FakeEncoder.sizeOf(QualitySearch.DEFAULT_MIN_QUALITY), result.size());
+    }
+}
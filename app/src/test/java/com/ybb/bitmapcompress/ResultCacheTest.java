@@ -0,0 +1,72 @@
+package com.ybb.bitmapcompress;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * {@link ResultCache} 的单元测试
+ */
+public class ResultCacheTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void keyChangesWithSourceAndOptions() throws Exception {
+        File source = mFolder.newFile("a.jpg");
+        write(source, 100);
+        String key = ResultCache.key(source, 3, "jpeg", false, 0);
+        assertEquals(key, ResultCache.key(source, 3, "jpeg", false, 0));
+        assertNotEquals(key, ResultCache.key(source, 4, "jpeg", false, 0));
+        assertNotEquals(key, ResultCache.key(source, 3, "webp", false, 0));
+        assertNotEquals(key, ResultCache.key(source, 3, "jpeg", true, 0));
+        assertNotEquals(key, ResultCache.key(source, 3, "jpeg", false, 0.95f));
+        write(source, 200);
+        assertNotEquals(key, ResultCache.key(source, 3, "jpeg", false, 0));
+    }
+
+    @Test
+    public void reopenDeletesTempFilesAndEvictsLeastRecentlyUsed() throws Exception {
+        File dir = mFolder.newFolder();
+        write(new File(dir, "old.jpg"), 100).setLastModified(1000000);
+        write(new File(dir, "new.jpg"), 100).setLastModified(2000000);
+        File temp = write(new File(dir, "new.1.tmp"), 100);
+
+        ResultCache cache = new ResultCache(dir, 150);
+        assertEquals(100, cache.size());
+        assertFalse(temp.exists());
+        assertNull(cache.get("old"));
+        assertNotNull(cache.get("new"));
+    }
+
+    @Test
+    public void missingFileIsNotAHit() throws Exception {
+        File dir = mFolder.newFolder();
+        File entry = write(new File(dir, "a.jpg"), 100);
+        ResultCache cache = new ResultCache(dir, 1000);
+        entry.delete();
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+    }
+
+    private static File write(File file, int length) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[length]);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
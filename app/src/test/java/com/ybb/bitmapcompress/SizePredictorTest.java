@@ -0,0 +1,57 @@
+package com.ybb.bitmapcompress;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link SizePredictor} 的单元测试
+ */
+public class SizePredictorTest {
+
+    private static final long PIXELS = 1000 * 1000;
+
+    /**
+     * 和默认的经验值形状不同的一组大小
+     */
+    private static long actualSize(int quality) {
+        return PIXELS * (quality * quality / 100 + 8) / 1200;
+    }
+
+    @Test
+    public void learnsFromEncodedSizes() throws Exception {
+        SizePredictor predictor = new SizePredictor(null);
+        QualitySearch.SizeModel model = predictor.model(PIXELS, SizePredictor.REFERENCE_COMPLEXITY);
+        for (int round = 0; round < 20; round++) {
+            for (int quality = 30; quality <= 70; quality += 5) {
+                predictor.learn(PIXELS, SizePredictor.REFERENCE_COMPLEXITY, quality, actualSize(quality));
+            }
+        }
+        for (int quality = 30; quality <= 70; quality += 10) {
+            double error = model.estimate(quality) / actualSize(quality) - 1;
+            assertTrue("quality " + quality + " error " + error, Math.abs(error) < 0.05);
+        }
+    }
+
+    @Test
+    public void staysMonotonic() throws Exception {
+        SizePredictor predictor = new SizePredictor(null);
+        //一次特别小的高质量编码不能让高质量的估算比低质量的还小
+        predictor.learn(PIXELS, SizePredictor.REFERENCE_COMPLEXITY, 90, 1);
+        for (int quality = 1; quality <= 100; quality++) {
+            assertTrue(predictor.bytesPerPixel(quality) >= predictor.bytesPerPixel(quality - 1));
+        }
+    }
+
+    @Test
+    public void complexImagesAreLarger() throws Exception {
+        SizePredictor predictor = new SizePredictor(null);
+        double flat = predictor.model(PIXELS, 0).estimate(80);
+        double normal = predictor.model(PIXELS, SizePredictor.REFERENCE_COMPLEXITY).estimate(80);
+        double busy = predictor.model(PIXELS, 40).estimate(80);
+        assertTrue(flat < normal);
+        assertTrue(normal < busy);
+        assertEquals(PIXELS * predictor.bytesPerPixel(80), normal, 1);
+    }
+}
@@ -0,0 +1,78 @@
+package com.ybb.bitmapcompress;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link SourceData} 的单元测试，只覆盖不需要Android的输入流部分
+ */
+public class SourceDataTest {
+
+    /**
+     * 每次只返回几个字节，并且记录有没有关闭
+     */
+    private static final class SlowStream extends InputStream {
+        private final InputStream mIn;
+        boolean closed;
+
+        SlowStream(byte[] data) {
+            mIn = new ByteArrayInputStream(data);
+        }
+
+        @Override
+        public int read() throws IOException {
+            return mIn.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return mIn.read(b, off, Math.min(len, 7));
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+        }
+    }
+
+    @Test
+    public void smallStreamIsBufferedAndClosed() throws Exception {
+        byte[] data = new byte[100 * 1024 + 3];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        SlowStream in = new SlowStream(data);
+        //不超过上限的时候不会用到临时文件
+        SourceData source = SourceData.read(in, null);
+        assertTrue(in.closed);
+        assertTrue(source.isBuffered());
+        assertNull(source.getFile());
+        assertEquals(data.length, source.length());
+        assertArrayEquals(data, source.data());
+    }
+
+    @Test
+    public void emptyStream() throws Exception {
+        SourceData source = SourceData.read(new ByteArrayInputStream(new byte[0]), null);
+        assertEquals(0, source.length());
+        assertEquals(0, source.data().length);
+        assertNull(source.readHeader());
+    }
+
+    @Test
+    public void bufferedLengthCountsOnlyBufferedFiles() {
+        assertEquals(0, SourceData.bufferedLength(0));
+        assertEquals(1024, SourceData.bufferedLength(1024));
+        assertEquals(SourceData.MAX_BUFFERED_SIZE, SourceData.bufferedLength(SourceData.MAX_BUFFERED_SIZE));
+        //太大的文件解码的时候从文件读取，不占内存
+        assertEquals(0, SourceData.bufferedLength(SourceData.MAX_BUFFERED_SIZE + 1));
+    }
+}